@@ -0,0 +1,794 @@
+package com.dandigit.jlox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Keeps the syntax trees of scripts and modules on disk, so running
+// the same source again can skip scanning, parsing, resolving and
+// optimizing it. Trees are stored after the optimizer has run, in a
+// compact binary format, in a .loxc file named after a hash of the
+// source. A changed file just has a different hash.
+//
+// Only what the resolver worked out is saved along with the syntax:
+// the caches the interpreter fills in as it runs start out empty
+// again, and links from variables to their declarations are left out,
+// as only the optimizer uses them.
+//
+// The cache is only ever an optimisation. Anything that goes wrong
+// reading or writing it means the source is compiled as usual.
+class AstCache {
+    private static final int MAGIC = 0x4c4f5843; // "LOXC"
+
+    // Must change whenever the format or the syntax tree does.
+    private static final int VERSION = 3;
+
+    // Reading a cached tree costs about as much as compiling a very
+    // short source, so those aren't cached.
+    private static final int MIN_SOURCE_LENGTH = 1024;
+
+    // Reading a tree recurses for every level it's nested, and on the
+    // default stack that gives out somewhere past 2000 levels. So trees
+    // nested deeper than this aren't stored, and a file that says
+    // otherwise is damaged. The parser builds chains like a + b + c
+    // without recursing, so deeper trees do get compiled; they're just
+    // compiled every time.
+    private static final int MAX_DEPTH = 1000;
+
+    // Returns null if the source isn't cached.
+    static List<Stmt> load(String source) {
+        if (source.length() < MIN_SOURCE_LENGTH) return null;
+
+        Path file = fileFor(source);
+        if (file == null || !Files.isRegularFile(file)) return null;
+
+        try {
+            return new Reader(Files.readAllBytes(file)).readFile();
+        } catch (IOException | RuntimeException exception) {
+            // Unreadable, cut short or damaged.
+            return null;
+        } catch (StackOverflowError error) {
+            // Loaded by an import with most of the stack already used.
+            return null;
+        }
+    }
+
+    static void store(String source, List<Stmt> statements) {
+        if (source.length() < MIN_SOURCE_LENGTH) return;
+
+        Path file = fileFor(source);
+        if (file == null) return;
+
+        Path temporary = null;
+        try {
+            Files.createDirectories(file.getParent());
+
+            // Written to the side and moved into place, so another run
+            // never sees half a file.
+            byte[] bytes = new Writer().writeFile(statements);
+            temporary = Files.createTempFile(file.getParent(), "tree", ".tmp");
+            Files.write(temporary, bytes);
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException exception) {
+            try {
+                if (temporary != null) Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+                // Leave it.
+            }
+        }
+    }
+
+    // Of everything after the header, so a damaged tree that would
+    // still read is noticed too.
+    private static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 16, bytes.length - 16);
+        return crc.getValue();
+    }
+
+    private static Path fileFor(String source) {
+        String base = System.getenv("XDG_CACHE_HOME");
+        if (base == null || base.isEmpty()) {
+            String home = System.getProperty("user.home");
+            if (home == null) return null;
+            base = Paths.get(home, ".cache").toString();
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(source.getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return Paths.get(base, "jlox", name.append(".loxc").toString());
+        } catch (NoSuchAlgorithmException | RuntimeException exception) {
+            return null;
+        }
+    }
+
+    // Node tags. Zero stands for a missing node.
+    private static final int NONE = 0;
+
+    private static final int ALLOT = 1;
+    private static final int ARRAY = 2;
+    private static final int ASSIGN = 3;
+    private static final int TERNARY = 4;
+    private static final int BINARY = 5;
+    private static final int CALL = 6;
+    private static final int FUNCTION_EXPR = 7;
+    private static final int GET = 8;
+    private static final int GROUPING = 9;
+    private static final int LITERAL = 10;
+    private static final int LOGICAL = 11;
+    private static final int REFERENCE = 12;
+    private static final int SET = 13;
+    private static final int SUBSCRIPT = 14;
+    private static final int SUPER = 15;
+    private static final int THIS = 16;
+    private static final int UNARY = 17;
+    private static final int VARIABLE = 18;
+
+    private static final int BLOCK = 32;
+    private static final int CLASS = 33;
+    private static final int EXPRESSION = 34;
+    private static final int FOR = 35;
+    private static final int FUNCTION_STMT = 36;
+    private static final int IF = 37;
+    private static final int IMPORT = 38;
+    private static final int RETURN = 39;
+    private static final int VAR = 40;
+    private static final int WHILE = 41;
+
+    // Value tags, for literals.
+    private static final int NIL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+
+    // String references. Each distinct string is written out once and
+    // later uses refer back to it by index.
+    private static final int NULL_STRING = -1;
+    private static final int NEW_STRING = -2;
+
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private ByteBuffer buffer = ByteBuffer.allocate(4096);
+        private final Map<String, Integer> strings = new HashMap<>();
+        private int depth = 0;
+
+        byte[] writeFile(List<Stmt> statements) {
+            reserve(16);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(0); // The checksum, filled in below.
+            writeStmts(statements);
+
+            byte[] bytes = Arrays.copyOf(buffer.array(), buffer.position());
+            ByteBuffer.wrap(bytes).putLong(8, checksum(bytes));
+            return bytes;
+        }
+
+        private void reserve(int bytes) {
+            if (buffer.remaining() < bytes) {
+                int capacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+
+        private void writeByte(int value) {
+            reserve(1);
+            buffer.put((byte)value);
+        }
+
+        private void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+
+        // Ints are written in as few bytes as they need, seven bits at
+        // a time, with the sign folded into the lowest bit.
+        private void writeInt(int value) {
+            int bits = (value << 1) ^ (value >> 31);
+            while ((bits & ~0x7f) != 0) {
+                writeByte((bits & 0x7f) | 0x80);
+                bits >>>= 7;
+            }
+            writeByte(bits);
+        }
+
+        private void writeDouble(double value) {
+            reserve(8);
+            buffer.putDouble(value);
+        }
+
+        // Nodes are counted the same way the reader counts them, so a
+        // tree it would refuse is never stored.
+        private void write(Expr expr) {
+            if (++depth > MAX_DEPTH) throw new IllegalStateException("Nested too deeply.");
+            if (expr == null) {
+                writeByte(NONE);
+            } else {
+                expr.accept(this);
+            }
+            depth--;
+        }
+
+        private void write(Stmt stmt) {
+            if (++depth > MAX_DEPTH) throw new IllegalStateException("Nested too deeply.");
+            if (stmt == null) {
+                writeByte(NONE);
+            } else {
+                stmt.accept(this);
+            }
+            depth--;
+        }
+
+        private void writeStmts(List<? extends Stmt> statements) {
+            writeInt(statements.size());
+            for (Stmt statement : statements) write(statement);
+        }
+
+        // A null list is written as -1.
+        private void writeExprs(List<Expr> exprs) {
+            if (exprs == null) {
+                writeInt(-1);
+                return;
+            }
+            writeInt(exprs.size());
+            for (Expr expr : exprs) write(expr);
+        }
+
+        private void writeTokens(List<Token> tokens) {
+            if (tokens == null) {
+                writeInt(-1);
+                return;
+            }
+            writeInt(tokens.size());
+            for (Token token : tokens) write(token);
+        }
+
+        private void write(Token token) {
+            if (token == null) {
+                writeByte(-1);
+                return;
+            }
+            writeByte(token.type.ordinal());
+            write(token.lexeme);
+            writeValue(token.literal);
+            writeInt(token.line);
+        }
+
+        private void write(String string) {
+            if (string == null) {
+                writeInt(NULL_STRING);
+                return;
+            }
+
+            Integer index = strings.get(string);
+            if (index != null) {
+                writeInt(index);
+                return;
+            }
+
+            strings.put(string, strings.size());
+            writeInt(NEW_STRING);
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            reserve(bytes.length);
+            buffer.put(bytes);
+        }
+
+        private void writeValue(Object value) {
+            value = Rope.flatten(value);
+            if (value == null) {
+                writeByte(NIL);
+            } else if (value instanceof Boolean) {
+                writeByte((Boolean)value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                writeByte(NUMBER);
+                writeDouble((Double)value);
+            } else if (value instanceof String) {
+                writeByte(STRING);
+                write((String)value);
+            } else {
+                throw new IllegalArgumentException("Can't cache a literal " + value + ".");
+            }
+        }
+
+        private void tag(int tag) {
+            writeByte(tag);
+        }
+
+        @Override
+        public Void visitAllotExpr(Expr.Allot expr) {
+            tag(ALLOT);
+            write(expr.object);
+            write(expr.name);
+            write(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitArrayExpr(Expr.Array expr) {
+            tag(ARRAY);
+            writeExprs(expr.values);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            tag(ASSIGN);
+            write(expr.name);
+            write(expr.value);
+            writeInt(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            tag(TERNARY);
+            write(expr.left);
+            write(expr.leftOper);
+            write(expr.middle);
+            write(expr.rightOper);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            tag(BINARY);
+            write(expr.left);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            tag(CALL);
+            write(expr.callee);
+            write(expr.paren);
+            writeExprs(expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionExpr(Expr.Function expr) {
+            tag(FUNCTION_EXPR);
+            writeTokens(expr.params);
+            writeStmts(expr.body);
+            writeBoolean(expr.isMethod);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            tag(GET);
+            write(expr.object);
+            write(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tag(GROUPING);
+            write(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            tag(LITERAL);
+            writeValue(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            tag(LOGICAL);
+            write(expr.left);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitReferenceExpr(Expr.Reference expr) {
+            tag(REFERENCE);
+            write(expr.operator);
+            write(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            tag(SET);
+            write(expr.object);
+            write(expr.name);
+            write(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSubscriptExpr(Expr.Subscript expr) {
+            tag(SUBSCRIPT);
+            write(expr.object);
+            write(expr.name);
+            write(expr.index);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            tag(SUPER);
+            write(expr.keyword);
+            write(expr.method);
+            writeInt(expr.depth);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            tag(THIS);
+            write(expr.keyword);
+            writeInt(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            tag(UNARY);
+            write(expr.operator);
+            write(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            tag(VARIABLE);
+            write(expr.name);
+            writeInt(expr.depth);
+            writeInt(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            tag(BLOCK);
+            writeStmts(stmt.statements);
+            writeBoolean(stmt.captured);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            tag(CLASS);
+            write(stmt.name);
+            write(stmt.superclass);
+            writeStmts(stmt.methods);
+            writeStmts(stmt.classMethods);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            tag(EXPRESSION);
+            write(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            tag(FOR);
+            write(stmt.initializer);
+            write(stmt.condition);
+            write(stmt.increment);
+            write(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            tag(FUNCTION_STMT);
+            write(stmt.name);
+            write(stmt.function);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            tag(IF);
+            write(stmt.condition);
+            write(stmt.thenBranch);
+            write(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitImportStmt(Stmt.Import stmt) {
+            tag(IMPORT);
+            write(stmt.keyword);
+            write(stmt.module);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            tag(RETURN);
+            write(stmt.keyword);
+            write(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            tag(VAR);
+            write(stmt.name);
+            write(stmt.initializer);
+            writeBoolean(stmt.assigned);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            tag(WHILE);
+            write(stmt.condition);
+            write(stmt.body);
+            return null;
+        }
+    }
+
+    // A damaged file could say anything, so besides checking its
+    // checksum, nothing it says is taken on trust: counts and lengths
+    // can't be more than the bytes left, and trees can't be nested
+    // deeper than MAX_DEPTH. A bad file fails with an IOException
+    // instead of running out of memory or stack.
+    private static class Reader {
+        private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+        private final ByteBuffer in;
+        private final List<String> strings = new ArrayList<>();
+        private int depth = 0;
+
+        Reader(byte[] bytes) {
+            this.in = ByteBuffer.wrap(bytes);
+        }
+
+        // Returns null if the file wasn't written by this version.
+        List<Stmt> readFile() throws IOException {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+            if (in.getLong() != checksum(in.array())) {
+                throw new IOException("Checksum doesn't match.");
+            }
+            return readStmts();
+        }
+
+        private int readInt() throws IOException {
+            int bits = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 28) throw new IOException("Number too long.");
+                b = in.get();
+                bits |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (bits >>> 1) ^ -(bits & 1);
+        }
+
+        // Everything counted takes at least a byte, so there can't be
+        // more of them than there are bytes left.
+        private void checkCount(int count) throws IOException {
+            if (count < 0 || count > in.remaining()) {
+                throw new IOException("Bad count " + count + ".");
+            }
+        }
+
+        private List<Stmt> readStmts() throws IOException {
+            int size = readInt();
+            checkCount(size);
+            List<Stmt> statements = new ArrayList<>(size);
+            for (int i = 0; i < size; ++i) statements.add(readStmt());
+            return statements;
+        }
+
+        private List<Stmt.Function> readFunctions() throws IOException {
+            int size = readInt();
+            checkCount(size);
+            List<Stmt.Function> functions = new ArrayList<>(size);
+            for (int i = 0; i < size; ++i) functions.add((Stmt.Function)readStmt());
+            return functions;
+        }
+
+        private List<Expr> readExprs() throws IOException {
+            int size = readInt();
+            if (size == -1) return null;
+            checkCount(size);
+
+            List<Expr> exprs = new ArrayList<>(size);
+            for (int i = 0; i < size; ++i) exprs.add(readExpr());
+            return exprs;
+        }
+
+        private List<Token> readTokens() throws IOException {
+            int size = readInt();
+            if (size == -1) return null;
+            checkCount(size);
+
+            List<Token> tokens = new ArrayList<>(size);
+            for (int i = 0; i < size; ++i) tokens.add(readToken());
+            return tokens;
+        }
+
+        private Token readToken() throws IOException {
+            int type = in.get();
+            if (type == -1) return null;
+
+            String lexeme = readString();
+            Object literal = readValue();
+            int line = readInt();
+            return new Token(TOKEN_TYPES[type], lexeme, literal, line);
+        }
+
+        private String readString() throws IOException {
+            int index = readInt();
+            if (index == NULL_STRING) return null;
+            if (index != NEW_STRING) return strings.get(index);
+
+            int length = readInt();
+            checkCount(length);
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            String string = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(string);
+            return string;
+        }
+
+        private Object readValue() throws IOException {
+            int tag = in.get();
+            switch (tag) {
+                case NIL: return null;
+                case FALSE: return false;
+                case TRUE: return true;
+                case NUMBER: return in.getDouble();
+                case STRING: return readString();
+            }
+            throw new IllegalStateException("Unknown value tag " + tag + ".");
+        }
+
+        private Expr readExpr() throws IOException {
+            if (++depth > MAX_DEPTH) throw new IOException("Nested too deeply.");
+            Expr expr = readExprNode();
+            depth--;
+            return expr;
+        }
+
+        private Expr readExprNode() throws IOException {
+            int tag = in.get();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case ALLOT:
+                    return new Expr.Allot(readExpr(), readToken(), readExpr());
+                case ARRAY:
+                    return new Expr.Array(readExprs());
+                case ASSIGN: {
+                    Expr.Assign expr = new Expr.Assign(readToken(), readExpr());
+                    expr.depth = readInt();
+                    expr.slot = readInt();
+                    return expr;
+                }
+                case TERNARY:
+                    return new Expr.Ternary(readExpr(), readToken(), readExpr(),
+                            readToken(), readExpr());
+                case BINARY:
+                    return new Expr.Binary(readExpr(), readToken(), readExpr());
+                case CALL:
+                    return new Expr.Call(readExpr(), readToken(), readExprs());
+                case FUNCTION_EXPR: {
+                    Expr.Function expr = new Expr.Function(readTokens(), readStmts());
+                    expr.isMethod = (in.get() != 0);
+                    return expr;
+                }
+                case GET:
+                    return new Expr.Get(readExpr(), readToken());
+                case GROUPING:
+                    return new Expr.Grouping(readExpr());
+                case LITERAL:
+                    return new Expr.Literal(readValue());
+                case LOGICAL:
+                    return new Expr.Logical(readExpr(), readToken(), readExpr());
+                case REFERENCE:
+                    return new Expr.Reference(readToken(), readExpr());
+                case SET:
+                    return new Expr.Set(readExpr(), readToken(), readExpr());
+                case SUBSCRIPT:
+                    return new Expr.Subscript(readExpr(), readToken(), readExpr());
+                case SUPER: {
+                    Expr.Super expr = new Expr.Super(readToken(), readToken());
+                    expr.depth = readInt();
+                    return expr;
+                }
+                case THIS: {
+                    Expr.This expr = new Expr.This(readToken());
+                    expr.depth = readInt();
+                    expr.slot = readInt();
+                    return expr;
+                }
+                case UNARY:
+                    return new Expr.Unary(readToken(), readExpr());
+                case VARIABLE: {
+                    Expr.Variable expr = new Expr.Variable(readToken());
+                    expr.depth = readInt();
+                    expr.slot = readInt();
+                    return expr;
+                }
+            }
+            throw new IllegalStateException("Unknown expression tag " + tag + ".");
+        }
+
+        private Stmt readStmt() throws IOException {
+            if (++depth > MAX_DEPTH) throw new IOException("Nested too deeply.");
+            Stmt stmt = readStmtNode();
+            depth--;
+            return stmt;
+        }
+
+        private Stmt readStmtNode() throws IOException {
+            int tag = in.get();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case BLOCK: {
+                    Stmt.Block stmt = new Stmt.Block(readStmts());
+                    stmt.captured = (in.get() != 0);
+                    return stmt;
+                }
+                case CLASS:
+                    return new Stmt.Class(readToken(), (Expr.Variable)readExpr(),
+                            readFunctions(), readFunctions());
+                case EXPRESSION:
+                    return new Stmt.Expression(readExpr());
+                case FOR:
+                    return new Stmt.For(readStmt(), readExpr(), readExpr(), readStmt());
+                case FUNCTION_STMT:
+                    return new Stmt.Function(readToken(), (Expr.Function)readExpr());
+                case IF:
+                    return new Stmt.If(readExpr(), readStmt(), readStmt());
+                case IMPORT:
+                    return new Stmt.Import(readToken(), readExpr());
+                case RETURN:
+                    return new Stmt.Return(readToken(), readExpr());
+                case VAR: {
+                    Stmt.Var stmt = new Stmt.Var(readToken(), readExpr());
+                    stmt.assigned = (in.get() != 0);
+                    return stmt;
+                }
+                case WHILE:
+                    return new Stmt.While(readExpr(), readStmt());
+            }
+            throw new IllegalStateException("Unknown statement tag " + tag + ".");
+        }
+    }
+}
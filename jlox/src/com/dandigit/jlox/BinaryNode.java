@@ -0,0 +1,209 @@
+package com.dandigit.jlox;
+
+// The executable half of a binary expression. Every Expr.Binary
+// starts out UNINITIALIZED; the first time it runs it looks at its
+// operands and rewrites itself to a node specialised for those types.
+// A specialised node only checks that its guess still holds, and
+// rewrites itself to GENERIC for good if it doesn't.
+//
+// Nodes evaluate their own operands, so the ones specialised for
+// numbers can ask for them unboxed and hand back an unboxed result.
+abstract class BinaryNode {
+    abstract Object execute(Interpreter interpreter, Expr.Binary expr);
+
+    // Only numeric nodes can produce a number without boxing it.
+    boolean isNumeric() {
+        return false;
+    }
+
+    double executeNumber(Interpreter interpreter, Expr.Binary expr) {
+        Object value = execute(interpreter, expr);
+        if (value instanceof Double) return (double)value;
+        throw new NotANumber(value);
+    }
+
+    static final BinaryNode UNINITIALIZED = new Uninitialized();
+    static final BinaryNode GENERIC = new Generic();
+
+    static final BinaryNode ADD_NUMBERS = new Arithmetic(TokenType.PLUS);
+    static final BinaryNode ADD_STRINGS = new AddStrings();
+    static final BinaryNode SUBTRACT_NUMBERS = new Arithmetic(TokenType.MINUS);
+    static final BinaryNode MULTIPLY_NUMBERS = new Arithmetic(TokenType.STAR);
+    static final BinaryNode DIVIDE_NUMBERS = new Arithmetic(TokenType.SLASH);
+    static final BinaryNode MODULO_NUMBERS = new Arithmetic(TokenType.PERCENTAGE);
+    static final BinaryNode GREATER_NUMBERS = new Comparison(TokenType.GREATER);
+    static final BinaryNode GREATER_EQUAL_NUMBERS = new Comparison(TokenType.GREATER_EQUAL);
+    static final BinaryNode LESS_NUMBERS = new Comparison(TokenType.LESS);
+    static final BinaryNode LESS_EQUAL_NUMBERS = new Comparison(TokenType.LESS_EQUAL);
+
+    private static BinaryNode specialize(Token operator, Object left, Object right) {
+        boolean numbers = left instanceof Double && right instanceof Double;
+
+        switch (operator.type) {
+            case PLUS:
+                if (numbers) return ADD_NUMBERS;
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    return ADD_STRINGS;
+                }
+                break;
+            case MINUS:
+                if (numbers) return SUBTRACT_NUMBERS;
+                break;
+            case STAR:
+                if (numbers) return MULTIPLY_NUMBERS;
+                break;
+            case SLASH:
+                if (numbers) return DIVIDE_NUMBERS;
+                break;
+            case PERCENTAGE:
+                if (numbers) return MODULO_NUMBERS;
+                break;
+            case GREATER:
+                if (numbers) return GREATER_NUMBERS;
+                break;
+            case GREATER_EQUAL:
+                if (numbers) return GREATER_EQUAL_NUMBERS;
+                break;
+            case LESS:
+                if (numbers) return LESS_NUMBERS;
+                break;
+            case LESS_EQUAL:
+                if (numbers) return LESS_EQUAL_NUMBERS;
+                break;
+        }
+
+        return GENERIC;
+    }
+
+    // Called by a specialised node whose guard just failed, with both
+    // operands already evaluated.
+    static Object generalize(Interpreter interpreter, Expr.Binary expr,
+                             Object left, Object right) {
+        expr.node = GENERIC;
+        return interpreter.binary(expr.operator, left, right);
+    }
+
+    private static class Uninitialized extends BinaryNode {
+        @Override
+        Object execute(Interpreter interpreter, Expr.Binary expr) {
+            Object left = interpreter.evaluate(expr.left);
+            Object right = interpreter.evaluate(expr.right);
+
+            expr.node = specialize(expr.operator, left, right);
+            return interpreter.binary(expr.operator, left, right);
+        }
+    }
+
+    private static class Generic extends BinaryNode {
+        @Override
+        Object execute(Interpreter interpreter, Expr.Binary expr) {
+            Object left = interpreter.evaluate(expr.left);
+            Object right = interpreter.evaluate(expr.right);
+            return interpreter.binary(expr.operator, left, right);
+        }
+    }
+
+    private static class Arithmetic extends BinaryNode {
+        private final TokenType operator;
+
+        Arithmetic(TokenType operator) {
+            this.operator = operator;
+        }
+
+        @Override
+        boolean isNumeric() {
+            return true;
+        }
+
+        @Override
+        Object execute(Interpreter interpreter, Expr.Binary expr) {
+            try {
+                return executeNumber(interpreter, expr);
+            } catch (NotANumber notANumber) {
+                return notANumber.value;
+            }
+        }
+
+        @Override
+        double executeNumber(Interpreter interpreter, Expr.Binary expr) {
+            double left;
+            try {
+                left = interpreter.evaluateNumber(expr.left);
+            } catch (NotANumber notANumber) {
+                Object right = interpreter.evaluate(expr.right);
+                return unbox(generalize(interpreter, expr, notANumber.value, right));
+            }
+
+            double right;
+            try {
+                right = interpreter.evaluateNumber(expr.right);
+            } catch (NotANumber notANumber) {
+                return unbox(generalize(interpreter, expr, left, notANumber.value));
+            }
+
+            switch (operator) {
+                case PLUS: return left + right;
+                case MINUS: return left - right;
+                case STAR: return left * right;
+                case PERCENTAGE: return left % right;
+                default:
+                    // Dividing by zero is still reported by the generic
+                    // path, without giving up the specialisation.
+                    if (right == 0) {
+                        return unbox(interpreter.binary(expr.operator, left, right));
+                    }
+                    return left / right;
+            }
+        }
+
+        private static double unbox(Object value) {
+            if (value instanceof Double) return (double)value;
+            throw new NotANumber(value);
+        }
+    }
+
+    private static class Comparison extends BinaryNode {
+        private final TokenType operator;
+
+        Comparison(TokenType operator) {
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(Interpreter interpreter, Expr.Binary expr) {
+            double left;
+            try {
+                left = interpreter.evaluateNumber(expr.left);
+            } catch (NotANumber notANumber) {
+                Object right = interpreter.evaluate(expr.right);
+                return generalize(interpreter, expr, notANumber.value, right);
+            }
+
+            double right;
+            try {
+                right = interpreter.evaluateNumber(expr.right);
+            } catch (NotANumber notANumber) {
+                return generalize(interpreter, expr, left, notANumber.value);
+            }
+
+            switch (operator) {
+                case GREATER: return left > right;
+                case GREATER_EQUAL: return left >= right;
+                case LESS: return left < right;
+                default: return left <= right;
+            }
+        }
+    }
+
+    private static class AddStrings extends BinaryNode {
+        @Override
+        Object execute(Interpreter interpreter, Expr.Binary expr) {
+            Object left = interpreter.evaluate(expr.left);
+            Object right = interpreter.evaluate(expr.right);
+            if (Rope.isString(left) && Rope.isString(right)) {
+                return Rope.concat(left, right);
+            }
+            return generalize(interpreter, expr, left, right);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.dandigit.jlox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A block of binary data, as made by std:Buffer. The bytes live
+// outside the Java heap in a direct ByteBuffer, or in a file that has
+// been mapped into memory, so large buffers don't cost the garbage
+// collector anything and can be written to a file without copying.
+//
+// A slice is a view onto the same bytes. Numbers are big-endian unless
+// a buffer is told otherwise, and each view has its own byte order.
+//
+// Getters return nil and setters return false if the offset or value
+// isn't a number or the value wouldn't fit inside the buffer.
+class BufferInstance extends NativeInstance {
+    private final ByteBuffer bytes;
+
+    private BufferInstance(ByteBuffer bytes, Map<String, LoxCallable> methods) {
+        super("Buffer", methods);
+        this.bytes = bytes;
+    }
+
+    // The std:Buffer module, which makes buffers.
+    static NativeInstance module() {
+        Map<String, LoxCallable> methods = new HashMap<>();
+
+        // A buffer of size bytes, all zero.
+        methods.put("create", new Method(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (!(arguments.get(0) instanceof Double)) return null;
+                double size = (double)arguments.get(0);
+                if (size < 0 || size > Integer.MAX_VALUE) return null;
+                return wrap(ByteBuffer.allocateDirect((int)size));
+            }
+        });
+
+        // The text encoded the same way files are read.
+        methods.put("fromText", new Method(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                ByteBuffer encoded = Charset.defaultCharset()
+                        .encode(interpreter.stringify(arguments.get(0)));
+                ByteBuffer bytes = ByteBuffer.allocateDirect(encoded.remaining());
+                bytes.put(encoded).clear();
+                return wrap(bytes);
+            }
+        });
+
+        // The whole of a file, or nil if it can't be read.
+        methods.put("read", new Method(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                try (FileChannel channel = open(interpreter, arguments.get(0),
+                        StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    if (size > Integer.MAX_VALUE) return null;
+
+                    ByteBuffer bytes = ByteBuffer.allocateDirect((int)size);
+                    while (bytes.hasRemaining()) {
+                        if (channel.read(bytes) < 0) break;
+                    }
+                    bytes.flip();
+                    return wrap(bytes);
+                } catch (IOException exception) {
+                    return null;
+                }
+            }
+        });
+
+        // A file mapped into memory, so its contents are only read as
+        // they're used. Setting numbers in a writable mapping changes
+        // the file.
+        methods.put("map", new Method(2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                boolean writable = interpreter.isTruthy(arguments.get(1));
+                try (FileChannel channel = writable
+                        ? open(interpreter, arguments.get(0),
+                                StandardOpenOption.READ, StandardOpenOption.WRITE)
+                        : open(interpreter, arguments.get(0), StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    if (size > Integer.MAX_VALUE) return null;
+
+                    return wrap(channel.map(writable
+                            ? FileChannel.MapMode.READ_WRITE
+                            : FileChannel.MapMode.READ_ONLY, 0, size));
+                } catch (IOException exception) {
+                    return null;
+                }
+            }
+        });
+
+        return new NativeInstance("Buffer", methods);
+    }
+
+    // Anything appended to the file with std:File is flushed first.
+    private static FileChannel open(Interpreter interpreter, Object path,
+                                    StandardOpenOption... options) throws IOException {
+        String file = interpreter.stringify(path);
+        interpreter.context.files.flush(file);
+        try {
+            return FileChannel.open(Paths.get(file), options);
+        } catch (InvalidPathException exception) {
+            throw new IOException(exception);
+        }
+    }
+
+    private static BufferInstance wrap(ByteBuffer bytes) {
+        Map<String, LoxCallable> methods = new HashMap<>();
+        final BufferInstance buffer = new BufferInstance(bytes, methods);
+
+        for (final Type type : TYPES) {
+            methods.put("get" + type.name, new Method(1) {
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments) {
+                    int offset = buffer.offset(arguments.get(0), type.size);
+                    if (offset < 0) return null;
+                    return type.get(buffer.bytes, offset);
+                }
+            });
+
+            methods.put("set" + type.name, new Method(2) {
+                @Override
+                public Object call(Interpreter interpreter, List<Object> arguments) {
+                    int offset = buffer.offset(arguments.get(0), type.size);
+                    if (offset < 0 || !(arguments.get(1) instanceof Double) ||
+                            buffer.bytes.isReadOnly()) {
+                        return false;
+                    }
+                    type.put(buffer.bytes, offset, (double)arguments.get(1));
+                    return true;
+                }
+            });
+        }
+
+        // Returns the buffer, so it can be called as it's made.
+        methods.put("setLittleEndian", new Method(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                buffer.bytes.order(interpreter.isTruthy(arguments.get(0))
+                        ? ByteOrder.LITTLE_ENDIAN
+                        : ByteOrder.BIG_ENDIAN);
+                return buffer;
+            }
+        });
+
+        // The bytes from 'from' up to but not including 'to', sharing
+        // this buffer's memory.
+        methods.put("slice", new Method(2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (!(arguments.get(0) instanceof Double) ||
+                        !(arguments.get(1) instanceof Double)) {
+                    return null;
+                }
+
+                int from = ((Double)arguments.get(0)).intValue();
+                int to = ((Double)arguments.get(1)).intValue();
+                if (from < 0 || to < from || to > buffer.bytes.limit()) return null;
+
+                ByteBuffer view = buffer.bytes.duplicate();
+                view.position(from).limit(to);
+                ByteBuffer slice = view.slice();
+                slice.order(buffer.bytes.order());
+                return wrap(slice);
+            }
+        });
+
+        // The bytes decoded the same way files are read.
+        methods.put("text", new Method(0) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return Charset.defaultCharset().decode(buffer.bytes.duplicate()).toString();
+            }
+        });
+
+        // Replaces the contents of a file with the buffer.
+        methods.put("write", new Method(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                try (FileChannel channel = open(interpreter, arguments.get(0),
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer remaining = buffer.bytes.duplicate();
+                    while (remaining.hasRemaining()) channel.write(remaining);
+                    return true;
+                } catch (IOException exception) {
+                    return false;
+                }
+            }
+        });
+
+        return buffer;
+    }
+
+    // The offset as an int, or -1 if a value of that many bytes there
+    // wouldn't fit inside the buffer.
+    private int offset(Object offset, int size) {
+        if (!(offset instanceof Double)) return -1;
+        double value = (double)offset;
+        if (value < 0 || value > bytes.limit() - size) return -1;
+        return (int)value;
+    }
+
+    @Override
+    Object get(String name) {
+        if (name.equals("size")) return (double)bytes.limit();
+        if (name.equals("littleEndian")) return bytes.order() == ByteOrder.LITTLE_ENDIAN;
+        return super.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return "<buffer " + bytes.limit() + " bytes>";
+    }
+
+    // A kind of number a buffer can hold. Integers are stored by
+    // dropping whatever bits don't fit.
+    private abstract static class Type {
+        final String name;
+        final int size;
+
+        Type(String name, int size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        abstract double get(ByteBuffer bytes, int offset);
+        abstract void put(ByteBuffer bytes, int offset, double value);
+    }
+
+    private static final Type[] TYPES = {
+        new Type("U8", 1) {
+            @Override
+            double get(ByteBuffer bytes, int offset) {
+                return bytes.get(offset) & 0xff;
+            }
+
+            @Override
+            void put(ByteBuffer bytes, int offset, double value) {
+                bytes.put(offset, (byte)(long)value);
+            }
+        },
+        new Type("I8", 1) {
+            @Override
+            double get(ByteBuffer bytes, int offset) {
+                return bytes.get(offset);
+            }
+
+            @Override
+            void put(ByteBuffer bytes, int offset, double value) {
+                bytes.put(offset, (byte)(long)value);
+            }
+        },
+        new Type("U16", 2) {
+            @Override
+            double get(ByteBuffer bytes, int offset) {
+                return bytes.getShort(offset) & 0xffff;
+            }
+
+            @Override
+            void put(ByteBuffer bytes, int offset, double value) {
+                bytes.putShort(offset, (short)(long)value);
+            }
+        },
+        new Type("I16", 2) {
+            @Override
+            double get(ByteBuffer bytes, int offset) {
+                return bytes.getShort(offset);
+            }
+
+            @Override
+            void put(ByteBuffer bytes, int offset, double value) {
+                bytes.putShort(offset, (short)(long)value);
+            }
+        },
+        new Type("U32", 4) {
+            @Override
+            double get(ByteBuffer bytes, int offset) {
+                return bytes.getInt(offset) & 0xffffffffL;
+            }
+
+            @Override
+            void put(ByteBuffer bytes, int offset, double value) {
+                bytes.putInt(offset, (int)(long)value);
+            }
+        },
+        new Type("I32", 4) {
+            @Override
+            double get(ByteBuffer bytes, int offset) {
+                return bytes.getInt(offset);
+            }
+
+            @Override
+            void put(ByteBuffer bytes, int offset, double value) {
+                bytes.putInt(offset, (int)(long)value);
+            }
+        },
+        // Lox numbers are doubles, so only integers up to 2^53 come
+        // back exactly.
+        new Type("I64", 8) {
+            @Override
+            double get(ByteBuffer bytes, int offset) {
+                return bytes.getLong(offset);
+            }
+
+            @Override
+            void put(ByteBuffer bytes, int offset, double value) {
+                bytes.putLong(offset, (long)value);
+            }
+        },
+        new Type("F32", 4) {
+            @Override
+            double get(ByteBuffer bytes, int offset) {
+                return bytes.getFloat(offset);
+            }
+
+            @Override
+            void put(ByteBuffer bytes, int offset, double value) {
+                bytes.putFloat(offset, (float)value);
+            }
+        },
+        new Type("F64", 8) {
+            @Override
+            double get(ByteBuffer bytes, int offset) {
+                return bytes.getDouble(offset);
+            }
+
+            @Override
+            void put(ByteBuffer bytes, int offset, double value) {
+                bytes.putDouble(offset, value);
+            }
+        },
+    };
+}
@@ -0,0 +1,31 @@
+package com.dandigit.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class Chunk {
+    byte[] code = new byte[8];
+    int count = 0;
+    final List<Object> constants = new ArrayList<>();
+
+    // The token each byte was compiled from. Runtime errors are
+    // reported against the token of the instruction that failed.
+    Token[] tokens = new Token[8];
+
+    void write(int value, Token token) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            tokens = Arrays.copyOf(tokens, count * 2);
+        }
+
+        code[count] = (byte)value;
+        tokens[count] = token;
+        ++count;
+    }
+
+    int addConstant(Object value) {
+        constants.add(value);
+        return constants.size() - 1;
+    }
+}
@@ -0,0 +1,473 @@
+package com.dandigit.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of the JVM class file format for the Jit: one final
+// class holding static methods, whose locals are a fixed set of
+// parameters followed by doubles. Every branch target gets a full
+// stack map frame, which keeps the verifier happy without having to
+// infer types.
+class ClassFileWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // Opcodes used by the Jit
+    static final int DCONST_0 = 0x0e;
+    static final int DCONST_1 = 0x0f;
+    static final int SIPUSH = 0x11;
+    static final int LDC2_W = 0x14;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int DALOAD = 0x31;
+    static final int AALOAD = 0x32;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int DASTORE = 0x52;
+    static final int POP2 = 0x58;
+    static final int DUP2 = 0x5c;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DREM = 0x73;
+    static final int DNEG = 0x77;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int DRETURN = 0xaf;
+    static final int RETURN = 0xb1;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ATHROW = 0xbf;
+
+    // Stack map verification types
+    private static final int ITEM_DOUBLE = 3;
+    private static final int ITEM_OBJECT = 7;
+
+    private final String name;
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolData = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndices = new HashMap<>();
+    private int poolCount = 1;
+    private final List<MethodWriter> methods = new ArrayList<>();
+
+    ClassFileWriter(String name) {
+        this.name = name;
+    }
+
+    MethodWriter addMethod(String name, String descriptor, String... fixedLocals) {
+        MethodWriter method = new MethodWriter(name, descriptor, fixedLocals);
+        methods.add(method);
+        return method;
+    }
+
+    byte[] toByteArray() {
+        int thisClass = classRef(name);
+        int superClass = classRef("java/lang/Object");
+        int code = utf8("Code");
+        int stackMapTable = utf8("StackMapTable");
+
+        // Resolve every method's pool entries before the pool is written.
+        List<byte[]> methodBytes = new ArrayList<>();
+        for (MethodWriter method : methods) {
+            methodBytes.add(method.toByteArray(code, stackMapTable));
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (byte[] method : methodBytes) {
+                out.write(method);
+            }
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException exception) {
+            // Writing to memory can't fail
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    int utf8(String value) {
+        Integer index = poolIndices.get("Utf8:" + value);
+        if (index != null) return index;
+
+        try {
+            poolData.writeByte(1);
+            poolData.writeUTF(value);
+        } catch (IOException exception) {
+            throw new IllegalStateException(exception);
+        }
+        return addEntry("Utf8:" + value, 1);
+    }
+
+    int classRef(String internalName) {
+        Integer index = poolIndices.get("Class:" + internalName);
+        if (index != null) return index;
+
+        int nameIndex = utf8(internalName);
+        writeEntry(7, nameIndex);
+        return addEntry("Class:" + internalName, 1);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        String key = "Method:" + owner + "." + name + descriptor;
+        Integer index = poolIndices.get(key);
+        if (index != null) return index;
+
+        int classIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+
+        writeEntry(12, nameIndex, descriptorIndex);
+        int nameAndType = addEntry("NameAndType:" + name + descriptor, 1);
+
+        writeEntry(10, classIndex, nameAndType);
+        return addEntry(key, 1);
+    }
+
+    int doubleConstant(double value) {
+        String key = "Double:" + Double.doubleToRawLongBits(value);
+        Integer index = poolIndices.get(key);
+        if (index != null) return index;
+
+        try {
+            poolData.writeByte(6);
+            poolData.writeDouble(value);
+        } catch (IOException exception) {
+            throw new IllegalStateException(exception);
+        }
+
+        // Doubles take up two entries in the pool.
+        return addEntry(key, 2);
+    }
+
+    private void writeEntry(int tag, int... indices) {
+        try {
+            poolData.writeByte(tag);
+            for (int index : indices) {
+                poolData.writeShort(index);
+            }
+        } catch (IOException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private int addEntry(String key, int size) {
+        int index = poolCount;
+        poolIndices.put(key, index);
+        poolCount += size;
+        return index;
+    }
+
+    static class Label {
+        private int position = -1;
+        private boolean used = false;
+        private int frameDoubles;
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    private static class Handler {
+        final int start;
+        final int end;
+        final Label handler;
+
+        Handler(int start, int end, Label handler) {
+            this.start = start;
+            this.end = end;
+            this.handler = handler;
+        }
+    }
+
+    class MethodWriter {
+        private final String name;
+        private final String descriptor;
+        private final String[] fixedLocals;
+        private final int fixedSlots;
+
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<>();
+        private final List<Handler> handlers = new ArrayList<>();
+
+        private int stackDepth = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+        private boolean reachable = true;
+
+        // fixedLocals are the types of the method's parameters, given
+        // as field descriptors ("D", "[D", "Lsome/Class;" and so on).
+        MethodWriter(String name, String descriptor, String[] fixedLocals) {
+            this.name = name;
+            this.descriptor = descriptor;
+            this.fixedLocals = fixedLocals;
+
+            int slots = 0;
+            for (String local : fixedLocals) {
+                slots += local.equals("D") ? 2 : 1;
+            }
+            this.fixedSlots = slots;
+            this.maxLocals = slots;
+        }
+
+        // The first local slot after the parameters.
+        int firstFreeSlot() {
+            return fixedSlots;
+        }
+
+        int position() {
+            return code.size();
+        }
+
+        boolean isReachable() {
+            return reachable;
+        }
+
+        void op(int opcode, int stackEffect) {
+            code.write(opcode);
+            adjustStack(stackEffect);
+
+            if (opcode == GOTO || opcode == DRETURN ||
+                    opcode == RETURN || opcode == ATHROW) {
+                reachable = false;
+                stackDepth = 0;
+            }
+        }
+
+        void loadDouble(int slot) {
+            local(DLOAD, slot, 2);
+        }
+
+        void storeDouble(int slot) {
+            local(DSTORE, slot, -2);
+        }
+
+        void loadReference(int slot) {
+            local(ALOAD, slot, 1);
+        }
+
+        void storeReference(int slot) {
+            local(ASTORE, slot, -1);
+        }
+
+        void pushDouble(double value) {
+            // 0.0 and 1.0 have their own instructions, but -0.0 doesn't.
+            if (Double.doubleToRawLongBits(value) == 0L) {
+                op(DCONST_0, 2);
+            } else if (value == 1.0) {
+                op(DCONST_1, 2);
+            } else {
+                op(LDC2_W, 2);
+                writeShort(doubleConstant(value));
+            }
+        }
+
+        void pushInt(int value) {
+            op(SIPUSH, 1);
+            writeShort(value);
+        }
+
+        void invokeStatic(String owner, String name, String descriptor,
+                          int stackEffect) {
+            op(INVOKESTATIC, stackEffect);
+            writeShort(methodRef(owner, name, descriptor));
+        }
+
+        void jump(int opcode, Label label) {
+            int at = code.size();
+            op(opcode, opcode == GOTO ? 0 : -1);
+            label.used = true;
+            label.jumps.add(at);
+            writeShort(0);
+            if (!labels.contains(label)) labels.add(label);
+        }
+
+        // frameDoubles is how many double locals follow the parameters
+        // at this point. Jumps to the label must agree with that.
+        void bind(Label label, int frameDoubles) {
+            label.position = code.size();
+            label.frameDoubles = frameDoubles;
+            if (!labels.contains(label)) labels.add(label);
+            if (label.used) reachable = true;
+            stackDepth = 0;
+        }
+
+        void addHandler(int start, int end, Label handler) {
+            handler.used = true;
+            handlers.add(new Handler(start, end, handler));
+            if (!labels.contains(handler)) labels.add(handler);
+        }
+
+        // Exception handlers start with the exception on the stack.
+        void bindHandler(Label label, int frameDoubles) {
+            bind(label, frameDoubles);
+            adjustStack(1);
+        }
+
+        private void local(int opcode, int slot, int stackEffect) {
+            op(opcode, stackEffect);
+            code.write(slot);
+
+            int size = (opcode == DLOAD || opcode == DSTORE) ? 2 : 1;
+            maxLocals = Math.max(maxLocals, slot + size);
+        }
+
+        private void adjustStack(int effect) {
+            stackDepth += effect;
+            maxStack = Math.max(maxStack, stackDepth);
+        }
+
+        private void writeShort(int value) {
+            code.write((value >> 8) & 0xff);
+            code.write(value & 0xff);
+        }
+
+        private byte[] toByteArray(int codeName, int stackMapName) {
+            byte[] bytecode = code.toByteArray();
+            if (bytecode.length > Short.MAX_VALUE) {
+                throw new IllegalStateException("Method too large.");
+            }
+
+            // Patch every jump now that all the labels are bound.
+            for (Label label : labels) {
+                for (int at : label.jumps) {
+                    int offset = label.position - at;
+                    bytecode[at + 1] = (byte)((offset >> 8) & 0xff);
+                    bytecode[at + 2] = (byte)(offset & 0xff);
+                }
+            }
+
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeShort(ACC_STATIC);
+                out.writeShort(utf8(name));
+                out.writeShort(utf8(descriptor));
+                out.writeShort(1);
+
+                byte[] stackMap = stackMapTable();
+
+                ByteArrayOutputStream attribute = new ByteArrayOutputStream();
+                DataOutputStream attributeOut = new DataOutputStream(attribute);
+                attributeOut.writeShort(maxStack);
+                attributeOut.writeShort(maxLocals);
+                attributeOut.writeInt(bytecode.length);
+                attributeOut.write(bytecode);
+                attributeOut.writeShort(handlers.size());
+                for (Handler handler : handlers) {
+                    attributeOut.writeShort(handler.start);
+                    attributeOut.writeShort(handler.end);
+                    attributeOut.writeShort(handler.handler.position);
+                    attributeOut.writeShort(0); // Catch anything
+                }
+
+                if (stackMap != null) {
+                    attributeOut.writeShort(1);
+                    attributeOut.writeShort(stackMapName);
+                    attributeOut.writeInt(stackMap.length);
+                    attributeOut.write(stackMap);
+                } else {
+                    attributeOut.writeShort(0);
+                }
+
+                out.writeShort(codeName);
+                out.writeInt(attribute.size());
+                out.write(attribute.toByteArray());
+                return bytes.toByteArray();
+            } catch (IOException exception) {
+                throw new IllegalStateException(exception);
+            }
+        }
+
+        private byte[] stackMapTable() throws IOException {
+            // One frame per distinct target offset. If two labels share
+            // an offset, the one with fewer locals is safe for both.
+            Map<Integer, Label> frames = new HashMap<>();
+            for (Label label : labels) {
+                if (!label.used) continue;
+
+                Label existing = frames.get(label.position);
+                if (existing == null || label.frameDoubles < existing.frameDoubles) {
+                    frames.put(label.position, label);
+                }
+            }
+
+            if (frames.isEmpty()) return null;
+
+            List<Integer> offsets = new ArrayList<>(frames.keySet());
+            offsets.sort(null);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(offsets.size());
+
+            int previous = -1;
+            for (int offset : offsets) {
+                Label label = frames.get(offset);
+
+                out.writeByte(255); // full_frame
+                out.writeShort(offset - previous - 1);
+                previous = offset;
+
+                out.writeShort(fixedLocals.length + label.frameDoubles);
+                for (String local : fixedLocals) {
+                    writeType(out, local);
+                }
+                for (int i = 0; i < label.frameDoubles; ++i) {
+                    out.writeByte(ITEM_DOUBLE);
+                }
+
+                boolean isHandler = false;
+                for (Handler handler : handlers) {
+                    if (handler.handler == label) isHandler = true;
+                }
+
+                if (isHandler) {
+                    out.writeShort(1);
+                    out.writeByte(ITEM_OBJECT);
+                    out.writeShort(classRef("java/lang/Throwable"));
+                } else {
+                    out.writeShort(0);
+                }
+            }
+
+            return bytes.toByteArray();
+        }
+
+        private void writeType(DataOutputStream out, String type) throws IOException {
+            if (type.equals("D")) {
+                out.writeByte(ITEM_DOUBLE);
+                return;
+            }
+
+            out.writeByte(ITEM_OBJECT);
+            if (type.startsWith("L")) {
+                out.writeShort(classRef(type.substring(1, type.length() - 1)));
+            } else {
+                // Array classes are named by their descriptor.
+                out.writeShort(classRef(type));
+            }
+        }
+    }
+}
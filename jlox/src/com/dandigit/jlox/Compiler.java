@@ -0,0 +1,518 @@
+package com.dandigit.jlox;
+
+import java.util.List;
+
+import static com.dandigit.jlox.OpCode.*;
+
+// Lowers a resolved syntax tree into bytecode for the VM. Every
+// function body is compiled into its own chunk, which is kept on the
+// Expr.Function node so LoxFunctions created at runtime can find it.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final LoxContext context;
+    private Chunk chunk;
+
+    // The most recent token we've seen. Nodes without a token of their
+    // own (literals, groupings) are attributed to it.
+    private Token token;
+
+    Compiler(LoxContext context) {
+        this.context = context;
+    }
+
+    Chunk compile(List<Stmt> statements) {
+        chunk = new Chunk();
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+
+        emit(OP_NIL);
+        emit(OP_RETURN);
+        return chunk;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        emit(OP_BEGIN_SCOPE);
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        emit(OP_END_SCOPE);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        token = stmt.name;
+
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+        }
+
+        for (Stmt.Function method : stmt.methods) {
+            compileFunction(method.function);
+        }
+
+        for (Stmt.Function method : stmt.classMethods) {
+            compileFunction(method.function);
+        }
+
+        token = stmt.name;
+        emitConstant(OP_CLASS, stmt);
+        emitConstant(OP_DEFINE, stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(OP_POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        token = stmt.name;
+        compileFunction(stmt.function);
+
+        token = stmt.name;
+        emitClosure(stmt.name.lexeme, stmt.function);
+        emitConstant(OP_DEFINE, stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int thenJump = emitJump(OP_JUMP_IF_FALSE);
+        emit(OP_POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OP_JUMP);
+        patchJump(thenJump);
+        emit(OP_POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        compile(stmt.module);
+        token = stmt.keyword;
+        emit(OP_IMPORT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(OP_NIL);
+        }
+
+        token = stmt.keyword;
+        emit(OP_RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        token = stmt.name;
+
+        if (stmt.initializer == null) {
+            emit(OP_NIL);
+        } else if (stmt.initializer instanceof Expr.Reference) {
+            // A variable initialised with a reference holds the
+            // reference itself rather than the referenced value.
+            Expr.Reference reference = (Expr.Reference)stmt.initializer;
+            emitConstant(OP_CONSTANT, createReference(reference));
+        } else if (stmt.initializer instanceof Expr.Variable) {
+            // Copying a reference variable copies the reference.
+            Expr.Variable variable = (Expr.Variable)stmt.initializer;
+            emitVariable(OP_GET_LOCAL_RAW, OP_GET_GLOBAL_RAW,
+                    variable, variable.depth, variable.slot);
+        } else {
+            compile(stmt.initializer);
+        }
+
+        token = stmt.name;
+        emitConstant(OP_DEFINE, stmt.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        emit(OP_BEGIN_SCOPE);
+        if (stmt.initializer != null) compile(stmt.initializer);
+
+        int loopStart = chunk.count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OP_JUMP_IF_FALSE);
+        emit(OP_POP);
+
+        // A body block that no closure can see reuses one scope.
+        if (stmt.body instanceof Stmt.Block && !((Stmt.Block)stmt.body).captured) {
+            emit(OP_BEGIN_LOOP_SCOPE);
+            for (Stmt statement : ((Stmt.Block)stmt.body).statements) {
+                compile(statement);
+            }
+            emit(OP_END_LOOP_SCOPE);
+        } else {
+            compile(stmt.body);
+        }
+
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emit(OP_POP);
+        }
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emit(OP_POP);
+        emit(OP_END_SCOPE);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = chunk.count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OP_JUMP_IF_FALSE);
+        emit(OP_POP);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emit(OP_POP);
+        return null;
+    }
+
+    @Override
+    public Void visitAllotExpr(Expr.Allot expr) {
+        Expr.Subscript subscript = (Expr.Subscript)expr.object;
+        compile(subscript.object);
+        compile(subscript.index);
+        compile(expr.value);
+
+        token = expr.name;
+        emit(OP_SET_INDEX);
+        return null;
+    }
+
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+        int count = 0;
+        if (expr.values != null) {
+            for (Expr value : expr.values) {
+                compile(value);
+            }
+            count = expr.values.size();
+        }
+
+        emit(OP_ARRAY);
+        emitShort(count);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+
+        token = expr.name;
+        emitVariable(OP_SET_LOCAL, OP_SET_GLOBAL,
+                expr, expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        // All three operands are evaluated before one is chosen.
+        compile(expr.left);
+        compile(expr.middle);
+        compile(expr.right);
+
+        token = expr.leftOper;
+        emit(OP_CONDITIONAL);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+
+        if (expr.operator.type == TokenType.COMMA) {
+            emit(OP_POP);
+            compile(expr.right);
+            return null;
+        }
+
+        compile(expr.right);
+
+        token = expr.operator;
+        switch (expr.operator.type) {
+            case BANG_EQUAL: emit(OP_NOT_EQUAL); break;
+            case EQUAL_EQUAL: emit(OP_EQUAL); break;
+            case GREATER: emit(OP_GREATER); break;
+            case GREATER_EQUAL: emit(OP_GREATER_EQUAL); break;
+            case LESS: emit(OP_LESS); break;
+            case LESS_EQUAL: emit(OP_LESS_EQUAL); break;
+            case MINUS: emit(OP_SUBTRACT); break;
+            case PLUS: emit(OP_ADD); break;
+            case SLASH: emit(OP_DIVIDE); break;
+            case STAR: emit(OP_MULTIPLY); break;
+            case PERCENTAGE: emit(OP_MODULO); break;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        // A method called straight away is invoked on its receiver,
+        // without creating a bound method for it.
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            compile(get.object);
+            for (Expr argument : expr.arguments) {
+                compile(argument);
+            }
+
+            token = expr.paren;
+            emitConstant(OP_INVOKE, get);
+            emit(expr.arguments.size());
+            return null;
+        }
+
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        token = expr.paren;
+        emit(OP_CALL);
+        emit(expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionExpr(Expr.Function expr) {
+        compileFunction(expr);
+        emitClosure(null, expr);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+
+        // The node itself is the constant, so the VM shares its
+        // inline cache with the interpreter.
+        token = expr.name;
+        emitConstant(OP_GET_PROPERTY, expr);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OP_NIL);
+        } else if (expr.value.equals(true)) {
+            emit(OP_TRUE);
+        } else if (expr.value.equals(false)) {
+            emit(OP_FALSE);
+        } else {
+            emitConstant(OP_CONSTANT, expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        token = expr.operator;
+        int endJump = emitJump(expr.operator.type == TokenType.OR ?
+                OP_JUMP_IF_TRUE : OP_JUMP_IF_FALSE);
+        emit(OP_POP);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitReferenceExpr(Expr.Reference expr) {
+        // Outside of a variable initializer a reference is immediately
+        // dereferenced, which is the same as evaluating its target.
+        compile(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+
+        token = expr.name;
+        emitConstant(OP_SET_PROPERTY, expr);
+        return null;
+    }
+
+    @Override
+    public Void visitSubscriptExpr(Expr.Subscript expr) {
+        compile(expr.object);
+        compile(expr.index);
+
+        token = expr.name;
+        emit(OP_GET_INDEX);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        token = expr.method;
+        emitConstant(OP_GET_SUPER, expr);
+        emitByte(expr.depth);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        token = expr.keyword;
+        emitVariable(OP_GET_LOCAL, OP_GET_GLOBAL,
+                expr, expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        token = expr.operator;
+        emit(expr.operator.type == TokenType.BANG ? OP_NOT : OP_NEGATE);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        token = expr.name;
+        emitVariable(OP_GET_LOCAL, OP_GET_GLOBAL,
+                expr, expr.depth, expr.slot);
+        return null;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void compileFunction(Expr.Function function) {
+        Chunk enclosing = chunk;
+        chunk = new Chunk();
+
+        for (Stmt statement : function.body) {
+            compile(statement);
+        }
+        emit(OP_NIL);
+        emit(OP_RETURN);
+
+        function.chunk = chunk;
+        chunk = enclosing;
+    }
+
+    private Reference createReference(Expr.Reference expr) {
+        if (expr.value instanceof Expr.Variable) {
+            return new Reference.Variable((Expr.Variable) expr.value);
+        }
+        if (expr.value instanceof Expr.Get) {
+            return new Reference.Property((Expr.Get) expr.value);
+        }
+        return new Reference.Element((Expr.Subscript) expr.value);
+    }
+
+    private void emit(int value) {
+        chunk.write(value, token);
+    }
+
+    private void emitByte(int value) {
+        if (value > 255) {
+            context.error(token, "Too many nested scopes or variables.");
+        }
+        emit(value);
+    }
+
+    private void emitShort(int value) {
+        if (value > 0xffff) {
+            context.error(token, "Too many values in one chunk.");
+        }
+        emit((value >> 8) & 0xff);
+        emit(value & 0xff);
+    }
+
+    private void emitConstant(byte instruction, Object value) {
+        emit(instruction);
+        emitShort(chunk.addConstant(value));
+    }
+
+    private void emitClosure(String name, Expr.Function function) {
+        emit(OP_CLOSURE);
+        emitShort(chunk.addConstant(function));
+        emitShort(chunk.addConstant(name));
+    }
+
+    // A global's constant is the node itself, so the VM shares the
+    // cell it caches with the interpreter.
+    private void emitVariable(byte localInstruction, byte globalInstruction,
+                              Expr site, int depth, int slot) {
+        if (depth != -1) {
+            emit(localInstruction);
+            emitByte(depth);
+            emitByte(slot);
+        } else {
+            emitConstant(globalInstruction, site);
+        }
+    }
+
+    private int emitJump(byte instruction) {
+        emit(instruction);
+        emit(0xff);
+        emit(0xff);
+        return chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        // -2 to adjust for the jump offset itself.
+        int jump = chunk.count - offset - 2;
+        if (jump > 0xffff) {
+            context.error(token, "Too much code to jump over.");
+        }
+
+        chunk.code[offset] = (byte)((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte)(jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OP_LOOP);
+
+        int offset = chunk.count - loopStart + 2;
+        if (offset > 0xffff) {
+            context.error(token, "Loop body too large.");
+        }
+
+        emit((offset >> 8) & 0xff);
+        emit(offset & 0xff);
+    }
+}
@@ -1,53 +1,149 @@
 package com.dandigit.jlox;
 
-import java.sql.Ref;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 class Environment {
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+
+    // Only the global environment looks variables up by name. Every
+    // local scope has been resolved to (depth, slot) pairs ahead of
+    // time, so locals live in a plain array in declaration order.
+    private final Map<String, Cell> values;
+    private Object[] slots;
+    private int count = 0;
+
+    // A local holding UNBOXED keeps its number in the parallel numbers
+    // array instead, so arithmetic on locals doesn't allocate. The
+    // array only exists once the scope has stored an unboxed number.
+    static final Object UNBOXED = new Object();
+    private double[] numbers;
+
+    // A global's value lives in a cell that stays put once the name is
+    // defined, even if it's defined again, so the places that use the
+    // global can keep the cell instead of looking the name up.
+    static final class Cell {
+        Object value;
+    }
 
     Environment() {
         enclosing = null;
+        values = new HashMap<>();
     }
 
     Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+        this(enclosing, 4);
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
+    Environment(Environment enclosing, int capacity) {
+        this.enclosing = enclosing;
+        this.values = null;
+        this.slots = new Object[capacity];
+    }
 
-        if (enclosing != null) return enclosing.get(name);
+    Cell cell(Token name) {
+        Cell cell = values.get(name.lexeme);
+        if (cell != null) return cell;
 
         throw new RuntimeError(name,
                 "Undefined variable '" + name.lexeme + "'.");
     }
 
+    Object get(Token name) {
+        return cell(name).value;
+    }
+
+    boolean isDefined(Token name) {
+        return values.containsKey(name.lexeme);
+    }
+
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+        cell(name).value = value;
+    }
+
+    void define(String name, Object value) {
+        if (values != null) {
+            Cell cell = values.get(name);
+            if (cell == null) {
+                cell = new Cell();
+                values.put(name, cell);
+            }
+            cell.value = value;
+            return;
+        }
+
+        // The resolver hands out slots in the same order that
+        // declarations are executed, so the next slot is always ours.
+        if (count == slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(4, count * 2));
+        }
+        slots[count++] = value;
+    }
+
+    void defineNumber(String name, double value) {
+        if (values != null) {
+            define(name, value);
             return;
         }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+        // Most scopes are short-lived, and one box is cheaper than
+        // the numbers array. Only scopes that already have one, because
+        // something in them was reassigned a number, skip the box.
+        if (numbers == null) {
+            define(name, value);
             return;
         }
 
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+        if (count == slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(4, count * 2));
+        }
+        setNumber(count++, value);
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    // Empties a local scope so it can be used again, for a loop body
+    // whose variables nothing else can see.
+    void reset() {
+        count = 0;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        Environment environment = ancestor(distance);
+        Object value = environment.slots[slot];
+        if (value == UNBOXED) {
+            // The number is escaping, so box it once and keep the box.
+            value = environment.numbers[slot];
+            environment.slots[slot] = value;
+        }
+        return value;
+    }
+
+    // These work on this scope's own slots, for callers that have
+    // already found the right scope with ancestor().
+    boolean isNumber(int slot) {
+        Object value = slots[slot];
+        return value == UNBOXED || value instanceof Double;
+    }
+
+    boolean isReference(int slot) {
+        return slots[slot] instanceof Reference;
+    }
+
+    double number(int slot) {
+        Object value = slots[slot];
+        if (value == UNBOXED) return numbers[slot];
+        return (double)value;
+    }
+
+    void setNumber(int slot, double value) {
+        if (numbers == null) {
+            numbers = new double[slots.length];
+        } else if (numbers.length < slots.length) {
+            numbers = Arrays.copyOf(numbers, slots.length);
+        }
+
+        slots[slot] = UNBOXED;
+        numbers[slot] = value;
     }
 
     Environment ancestor(int distance) {
@@ -59,7 +155,7 @@ class Environment {
         return environment;
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
     }
 }
@@ -58,6 +58,9 @@ abstract class Expr {
         }
         final Token name;
         final Expr value;
+        int depth = -1;
+        int slot;
+        Environment.Cell cell;
     }
     static class Ternary extends Expr {
         Ternary(Expr left, Token leftOper, Expr middle, Token rightOper, Expr right) {
@@ -90,6 +93,7 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        BinaryNode node = BinaryNode.UNINITIALIZED;
     }
     static class Call extends Expr {
         Call(Expr callee, Token paren, List<Expr> arguments) {
@@ -116,6 +120,10 @@ abstract class Expr {
         }
         final List<Token> params;
         final List<Stmt> body;
+        boolean isMethod;
+        Chunk chunk;
+        int calls;
+        Jit.Unit jit;
     }
     static class Get extends Expr {
         Get(Expr object, Token name) {
@@ -128,6 +136,7 @@ abstract class Expr {
         }
         final Expr object;
         final Token name;
+        InlineCache.Get cache = new InlineCache.Get();
     }
     static class Grouping extends Expr {
         Grouping(Expr expression) {
@@ -188,6 +197,7 @@ abstract class Expr {
         final Expr object;
         final Token name;
         final Expr value;
+        InlineCache.Set cache = new InlineCache.Set();
     }
     static class Subscript extends Expr {
         Subscript(Expr object, Token name, Expr index) {
@@ -214,6 +224,8 @@ abstract class Expr {
         }
         final Token keyword;
         final Token method;
+        int depth = -1;
+        InlineCache.Super cache = new InlineCache.Super();
     }
     static class This extends Expr {
         This(Token keyword) {
@@ -224,6 +236,8 @@ abstract class Expr {
             return visitor.visitThisExpr(this);
         }
         final Token keyword;
+        int depth = -1;
+        int slot;
     }
     static class Unary extends Expr {
         Unary(Token operator, Expr right) {
@@ -236,6 +250,7 @@ abstract class Expr {
         }
         final Token operator;
         final Expr right;
+        UnaryNode node = UnaryNode.UNINITIALIZED;
     }
     static class Variable extends Expr {
         Variable(Token name) {
@@ -246,6 +261,10 @@ abstract class Expr {
             return visitor.visitVariableExpr(this);
         }
         final Token name;
+        int depth = -1;
+        int slot;
+        Stmt.Var declaration;
+        Environment.Cell cell;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,150 @@
+package com.dandigit.jlox;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The file behind an instance of std:File. Appends are buffered by
+// the context's OpenFiles, so appending a piece at a time doesn't open
+// and close the file every time, and readLine() reads through the file
+// a line at a time without loading all of it.
+//
+// write() replaces the file straight away, as it always has. Whatever
+// has been appended is flushed before the file is read, and when the
+// script finishes running. readLine() only flushes when it opens the
+// file, so reading a line and appending to another file in a loop
+// keeps the appends buffered.
+class FileHandle extends NativeInstance {
+    private final String path;
+    private BufferedReader reader;
+
+    // How far readLine() has got, so a reader closed to make room for
+    // others can pick up where it left off.
+    private long linesRead = 0;
+
+    private FileHandle(String path, Map<String, LoxCallable> methods) {
+        super("File", methods);
+        this.path = path;
+    }
+
+    static FileHandle open(String path) {
+        Map<String, LoxCallable> methods = new HashMap<>();
+        final FileHandle handle = new FileHandle(path, methods);
+
+        methods.put("read", new Method(0) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                try {
+                    interpreter.context.files.flush(handle.path);
+                    return Lox.readLines(handle.path);
+                } catch (IOException exception) {
+                    return null;
+                }
+            }
+        });
+
+        methods.put("readLine", new Method(0) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                try {
+                    return handle.readLine(interpreter.context.files);
+                } catch (IOException exception) {
+                    return null;
+                }
+            }
+        });
+
+        methods.put("write", new Method(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                try {
+                    interpreter.context.files.write(handle.path,
+                            interpreter.stringify(arguments.get(0)));
+                    return true;
+                } catch (IOException exception) {
+                    return false;
+                }
+            }
+        });
+
+        methods.put("append", new Method(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                try {
+                    interpreter.context.files.append(handle.path,
+                            interpreter.stringify(arguments.get(0)));
+                    return true;
+                } catch (IOException exception) {
+                    return false;
+                }
+            }
+        });
+
+        methods.put("close", new Method(0) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                OpenFiles files = interpreter.context.files;
+                files.stoppedReading(handle);
+                handle.closeReader();
+                handle.linesRead = 0;
+                try {
+                    files.closeWriter(handle.path);
+                    return true;
+                } catch (IOException exception) {
+                    return false;
+                }
+            }
+        });
+
+        return handle;
+    }
+
+    // Returns null at the end of the file, after which the next call
+    // starts again from the top.
+    private String readLine(OpenFiles files) throws IOException {
+        if (reader == null) {
+            files.flush(path);
+            reader = new BufferedReader(new FileReader(path));
+            for (long i = 0; i < linesRead; ++i) {
+                if (reader.readLine() == null) break;
+            }
+        }
+        files.reading(this);
+
+        String line = reader.readLine();
+        if (line == null) {
+            files.stoppedReading(this);
+            closeReader();
+            linesRead = 0;
+        } else {
+            linesRead++;
+        }
+        return line;
+    }
+
+    // Leaves linesRead alone, so the next readLine() carries on.
+    void closeReader() {
+        if (reader == null) return;
+
+        try {
+            reader.close();
+        } catch (IOException exception) {
+            // It was only being read.
+        }
+        reader = null;
+    }
+
+    @Override
+    Object get(String name) {
+        if (name.equals("path")) return path;
+        return super.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return "<file " + path + ">";
+    }
+}
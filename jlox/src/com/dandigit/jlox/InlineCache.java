@@ -0,0 +1,144 @@
+package com.dandigit.jlox;
+
+// Per-site caches for property access, kept on the Expr.Get, Expr.Set
+// and Expr.Super nodes and shared by the interpreter and the VM.
+// A get or set site remembers up to SIZE shapes it has seen, with
+// where the property was found for each, so a repeated access is a
+// guard and an array load. A site that sees more shapes than that is
+// megamorphic and goes back to looking properties up by name.
+class InlineCache {
+    private static final int SIZE = 4;
+
+    static final class Get {
+        private Shape[] shapes;
+        // For a method, the class it was found through. Null for a field.
+        private LoxClass[] classes;
+        private int[] indices;
+        private LoxFunction[] methods;
+        private int count = 0;
+
+        Object get(LoxInstance instance, Token name) {
+            int entry = lookUp(instance, name);
+            if (entry == -1) return instance.get(name);
+
+            if (classes[entry] == null) return instance.getField(indices[entry]);
+            return methods[entry].bind(instance);
+        }
+
+        // The method a call site is about to invoke, without binding
+        // it. Null if the property is a field, or if a megamorphic site
+        // finds nothing, leaving the caller to report it.
+        LoxFunction getMethod(LoxInstance instance, Token name) {
+            int entry = lookUp(instance, name);
+            if (entry == -1) {
+                if (instance.shape.indexOf(name.lexeme) != -1) return null;
+                return instance.klass.lookUpMethod(name.lexeme);
+            }
+
+            return methods[entry];
+        }
+
+        // Finds or adds the entry for the instance's shape and class.
+        // Returns -1 once the site is megamorphic.
+        private int lookUp(LoxInstance instance, Token name) {
+            Shape shape = instance.shape;
+            for (int i = 0; i < count; ++i) {
+                if (shapes[i] != shape) continue;
+                if (classes[i] == null || classes[i] == instance.klass) return i;
+            }
+
+            if (count == SIZE) return -1;
+
+            if (shapes == null) {
+                shapes = new Shape[SIZE];
+                classes = new LoxClass[SIZE];
+                indices = new int[SIZE];
+                methods = new LoxFunction[SIZE];
+            }
+
+            int index = shape.indexOf(name.lexeme);
+            if (index != -1) {
+                shapes[count] = shape;
+                indices[count] = index;
+                return count++;
+            }
+
+            LoxFunction method = instance.klass.lookUpMethod(name.lexeme);
+            if (method == null) {
+                throw new RuntimeError(name,
+                        "Undefined property '" + name.lexeme + "'.");
+            }
+
+            shapes[count] = shape;
+            classes[count] = instance.klass;
+            methods[count] = method;
+            return count++;
+        }
+    }
+
+    static final class Set {
+        // The shape before the store, and after it if the store adds
+        // the field.
+        private Shape[] before;
+        private Shape[] after;
+        private int[] indices;
+        private int count = 0;
+
+        void set(LoxInstance instance, Token name, Object value) {
+            Shape shape = instance.shape;
+            for (int i = 0; i < count; ++i) {
+                if (before[i] == shape) {
+                    instance.setField(after[i], indices[i], value);
+                    return;
+                }
+            }
+
+            if (count == SIZE) {
+                instance.set(name, value);
+                return;
+            }
+
+            if (before == null) {
+                before = new Shape[SIZE];
+                after = new Shape[SIZE];
+                indices = new int[SIZE];
+            }
+
+            int index = shape.indexOf(name.lexeme);
+            Shape next = shape;
+            if (index == -1) {
+                index = shape.size;
+                next = shape.withField(name.lexeme);
+            }
+
+            before[count] = shape;
+            after[count] = next;
+            indices[count] = index;
+            count++;
+            instance.setField(next, index, value);
+        }
+    }
+
+    // A super call's superclass is fixed by where the class was
+    // declared, so one entry is enough.
+    static final class Super {
+        private LoxClass superclass;
+        private LoxFunction method;
+
+        // Returns the method unbound; callers that need a value bind it.
+        LoxFunction get(LoxClass superclass, Token name) {
+            if (superclass != this.superclass) {
+                LoxFunction method = superclass.lookUpMethod(name.lexeme);
+                if (method == null) {
+                    throw new RuntimeError(name,
+                            "Undefined property '" + name.lexeme + "'.");
+                }
+
+                this.superclass = superclass;
+                this.method = method;
+            }
+
+            return method;
+        }
+    }
+}
@@ -3,19 +3,48 @@ package com.dandigit.jlox;
 import java.sql.Ref;
 import java.util.*;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
     final Environment globals = new Environment();
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
 
-    Interpreter() {
+    // Statements report how they completed instead of unwinding with
+    // an exception: a return statement completes with RETURN and
+    // leaves its value here for the call that's returning.
+    static final Object RETURN = new Object();
+    private Object returnValue;
+
+    // "return f(...)" completes with TAIL_CALL and leaves the call it
+    // would have made here. The function that's returning makes it
+    // instead, once this one's Java frames are gone, so tail calls
+    // don't use up the stack.
+    static final Object TAIL_CALL = new Object();
+    LoxFunction tailFunction;
+    LoxInstance tailReceiver;
+    List<Object> tailArguments;
+
+    // Every module imported so far, so each is only run once. Files are
+    // keyed by their real path and map to when they were last changed,
+    // so one that's edited is run again the next time it's imported.
+    // Standard library modules are keyed by name.
+    private final Map<String, Long> modules = new HashMap<>();
+
+    final LoxContext context;
+
+    // Whether hot functions and loops are compiled by the Jit.
+    final boolean jit;
+
+    Interpreter(LoxContext context, boolean jit) {
+        this.context = context;
+        this.jit = jit;
+
         globals.define("print", new LoxCallable() {
             @Override
             public int arity() {
@@ -25,7 +54,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             @Override
             public Object call(Interpreter interpreter,
                                List<Object> arguments) {
-                System.out.println(stringify(arguments.get(0)));
+                context.out.println(stringify(arguments.get(0)));
                 return null;
             }
 
@@ -44,7 +73,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             @Override
             public Object call(Interpreter interpreter,
                                List<Object> arguments) {
-                System.out.print(stringify(arguments.get(0)));
+                context.out.print(stringify(arguments.get(0)));
                 return null;
             }
 
@@ -64,8 +93,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             public Object call(Interpreter interpreter,
                                List<Object> arguments) {
                 try {
-                    BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-                    return br.readLine();
+                    return context.in.readLine();
                 } catch (IOException exc) {
                     return null;
                 }
@@ -158,21 +186,14 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             @Override
             public Object call(Interpreter interpreter,
                                List<Object> arguments) {
-                String contents;
-
                 try {
+                    context.files.flush(stringify(arguments.get(0)));
+
                     // File path is 1st argument
-                    BufferedReader br = new BufferedReader(new FileReader(stringify(arguments.get(0))));
-                    String currentLine;
-                    contents = "";
-                    while ((currentLine = br.readLine()) != null) {
-                        contents += currentLine + "\n";
-                    }
+                    return Lox.readLines(stringify(arguments.get(0)));
                 } catch (IOException exception) {
                     return null;
                 }
-
-                return contents;
             }
 
             @Override
@@ -191,6 +212,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             public Object call(Interpreter interpreter,
                                List<Object> arguments) {
                 try {
+                    context.files.flush(stringify(arguments.get(0)));
+
                     // File path is 1st argument
                     BufferedWriter bw = new BufferedWriter(new FileWriter(stringify(arguments.get(0))));
                     // Data is 2nd argument
@@ -219,6 +242,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             public Object call(Interpreter interpreter,
                                List<Object> arguments) {
                 try {
+                    context.files.flush(stringify(arguments.get(0)));
+
                     // File path is 1st argument
                     BufferedWriter bw = new BufferedWriter(new FileWriter(stringify(arguments.get(0)), true));
                     // Data is 2nd argument
@@ -247,12 +272,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             public Object call(Interpreter interpreter, List<Object> arguments) {
                 Object object = arguments.get(0);
 
-                if (object instanceof String) {
-                    return (double) ((String) object).length();
+                if (Rope.isString(object)) {
+                    return (double) ((CharSequence) object).length();
                 }
 
-                if (object instanceof List) {
-                    return (double) ((List) object).size();
+                if (object instanceof LoxArray) {
+                    return (double) ((LoxArray) object).size();
                 }
 
                 return null;
@@ -264,17 +289,55 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         });
 
-        globals.define("argv", Lox.argv);
+        globals.define("slice", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 3;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter,
+                               List<Object> arguments) {
+                Object object = arguments.get(0);
+                if (!(object instanceof LoxArray) ||
+                        !(arguments.get(1) instanceof Double) ||
+                        !(arguments.get(2) instanceof Double)) {
+                    return null;
+                }
+
+                LoxArray array = (LoxArray)object;
+                int from = ((Double)arguments.get(1)).intValue();
+                int to = ((Double)arguments.get(2)).intValue();
+                if (from < 0 || to < from || to > array.size()) return null;
+
+                // The slice shares the array's elements until either
+                // of them is changed.
+                return array.slice(from, to);
+            }
+
+            @Override
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        globals.define("argv", context.argv);
 
     }
 
     void interpret(List<Stmt> statements) {
+        // Imports run a module part way through another script, maybe
+        // inside a function, but what the module defines is global.
+        Environment previous = environment;
+        environment = globals;
         try {
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            context.runtimeError(error);
+        } finally {
+            environment = previous;
         }
     }
 
@@ -285,76 +348,74 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             subscript = (Expr.Subscript)expr.object;
         }
 
-        Object listObject = evaluate(subscript.object);
-        if (!(listObject instanceof List)) {
-            throw new RuntimeError(expr.name,
-                    "Only arrays can be subscripted.");
-        }
-
-        List<Object> list = (List)listObject;
-
-        Object indexObject = evaluate(subscript.index);
-        if (!(indexObject instanceof Double)) {
-            throw new RuntimeError(expr.name,
-                    "Only numbers can be used as an array index.");
-        }
-
-        int index = ((Double) indexObject).intValue();
-        if (index >= list.size()) {
-            throw new RuntimeError(expr.name,
-                    "Array index out of range.");
-        }
+        LoxArray array = checkArray(expr.name, evaluate(subscript.object));
+        int index = evaluateIndex(expr.name, array, subscript.index);
 
         Object value = evaluate(expr.value);
 
-        list.set(index, value);
+        array.set(index, value);
         return value;
     }
 
     @Override
     public Object visitArrayExpr(Expr.Array expr) {
-        List<Object> values = new ArrayList<>();
+        LoxArray array = new LoxArray();
         if (expr.values != null) {
             for (Expr value : expr.values) {
-                values.add(evaluate(value));
+                array.add(evaluate(value));
             }
         }
-        return values;
+        return array;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
+        assignValue(expr, value);
+        return value;
+    }
 
-        Object target = (distance != null ? environment.getAt(distance, expr.name.lexeme) : globals.get(expr.name));
+    private void assignValue(Expr.Assign expr, Object value) {
+        // Locals are only read when they hold a reference, so an
+        // unboxed number isn't boxed just to be overwritten.
+        if (expr.depth == -1) {
+            Environment.Cell cell = globalCell(expr);
+            if (cell.value instanceof Reference) {
+                assignReference((Reference)cell.value, value);
+            } else {
+                cell.value = value;
+            }
+            return;
+        }
+
+        Object target = null;
+        if (environment.ancestor(expr.depth).isReference(expr.slot)) {
+            target = environment.getAt(expr.depth, expr.slot);
+        }
 
         if (target instanceof Reference) {
-            assignReference((Reference)target, expr.value, distance);
+            assignReference((Reference)target, value);
         } else {
-            assign(expr.name, value, distance);
+            environment.assignAt(expr.depth, expr.slot, value);
         }
-
-        return value;
     }
 
-    private void assignReference(Reference target, Expr value, Integer distance) {
+    private void assignReference(Reference target, Object value) {
         if (target instanceof Reference.Variable) {
-            assign(target.name(), evaluate(value), distance);
+            // Write through the referenced variable's own resolution,
+            // the same way maybeDeref() reads through it.
+            Expr.Variable variable = (Expr.Variable)target.drf();
+            if (variable.depth != -1) {
+                environment.assignAt(variable.depth, variable.slot, value);
+            } else {
+                globalCell(variable).value = value;
+            }
         } else if (target instanceof Reference.Property) {
             Expr.Get expr = (Expr.Get)target.drf();
-            evaluate(new Expr.Set(expr.object, expr.name, value));
+            evaluate(new Expr.Set(expr.object, expr.name, new Expr.Literal(value)));
         } else if (target instanceof Reference.Element) {
             Expr.Subscript expr = (Expr.Subscript)target.drf();
-            evaluate(new Expr.Allot(expr.object, expr.name, expr.index));
-        }
-    }
-
-    private void assign(Token name, Object value, Integer distance) {
-        if (distance != null) {
-            environment.assignAt(distance, name, value);
-        } else {
-            globals.assign(name, value);
+            evaluate(new Expr.Allot(expr, expr.name, new Expr.Literal(value)));
         }
     }
 
@@ -400,44 +461,38 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        expr.cache.set((LoxInstance)object, expr.name, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
+        int distance = expr.depth;
+        LoxClass superclass = (LoxClass)environment.getAt(distance, 0);
 
-        // "this" is always one level nearer than "super"'s environment
-        LoxInstance object = (LoxInstance)environment.getAt(distance - 1,
-                "this");
+        // "super" is the only variable in its scope, and the method's
+        // own scope, with "this" in its first slot, is the next one in.
+        LoxInstance object = (LoxInstance)environment.getAt(distance - 1, 0);
 
-        LoxFunction method = superclass.findMethod(
-                object, expr.method.lexeme);
-
-        if (method == null) {
-            throw new RuntimeError(expr.method,
-                    "Undefined property '" + expr.method.lexeme + "'.");
-        }
-
-        return method;
+        return expr.cache.get(superclass, expr.method).bind(object);
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth, expr.slot);
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
+        return expr.node.execute(this, expr);
+    }
 
-        switch (expr.operator.type) {
+    Object unary(Token operator, Object right) {
+        switch (operator.type) {
             case BANG:
                 return !isTruthy(right);
             case MINUS:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperand(operator, right);
                 return -(double)right;
         }
 
@@ -447,13 +502,33 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        if (expr.depth != -1) return environment.getAt(expr.depth, expr.slot);
+        return globalCell(expr).value;
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    // A global is looked up by name the first time a site uses it, and
+    // the site keeps its cell from then on.
+    Environment.Cell globalCell(Expr.Variable expr) {
+        Environment.Cell cell = expr.cell;
+        if (cell == null) {
+            cell = globals.cell(expr.name);
+            expr.cell = cell;
+        }
+        return cell;
+    }
+
+    Environment.Cell globalCell(Expr.Assign expr) {
+        Environment.Cell cell = expr.cell;
+        if (cell == null) {
+            cell = globals.cell(expr.name);
+            expr.cell = cell;
+        }
+        return cell;
+    }
+
+    private Object lookUpVariable(Token name, int depth, int slot) {
+        if (depth != -1) {
+            return environment.getAt(depth, slot);
         } else {
             return globals.get(name);
         }
@@ -461,10 +536,11 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        return expr.node.execute(this, expr);
+    }
 
-        switch (expr.operator.type) {
+    Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case COMMA:
                 return right;
             case BANG_EQUAL:
@@ -472,41 +548,37 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             case EQUAL_EQUAL:
                 return isEqual(left, right);
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left >= (double)right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left < (double)right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left <= (double)right;
             case MINUS:
                 if (left instanceof Double && right instanceof Double) {
                     return (double)left - (double)right;
                 }
 
-                if (left instanceof List && right instanceof Double) {
-                    List list = (List)left;
-                    List<Object> newList = new ArrayList<>();
-                    int newSize = list.size() - ((Double) right).intValue();
+                if (left instanceof LoxArray && right instanceof Double) {
+                    LoxArray array = (LoxArray)left;
+                    int newSize = array.size() - ((Double) right).intValue();
 
-                    if (newSize < 0) {
-                        throw new RuntimeError(expr.operator,
+                    // A negative count would reach past the end.
+                    if (newSize < 0 || newSize > array.size()) {
+                        throw new RuntimeError(operator,
                                 "Cannot remove " + ((Double) right).intValue() + " elements from an array of size " +
-                                        list.size() + ".");
-                    }
-
-                    for (int index = 0; index < newSize; ++index) {
-                        newList.add(list.get(index));
+                                        array.size() + ".");
                     }
 
-                    return newList;
+                    return array.slice(0, newSize);
                 }
 
-                throw new RuntimeError(expr.operator,
+                throw new RuntimeError(operator,
                         "Invalid operands to binary operator '-'.");
             // PLUS is a bit different as we can add numbers and strings
             case PLUS:
@@ -514,30 +586,29 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     return (double)left + (double)right;
                 }
 
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
+                if (Rope.isString(left) && Rope.isString(right)) {
+                    return Rope.concat(left, right);
                 }
 
-                if (left instanceof List) {
-                    List list = (List)left;
-                    list.add(right);
+                if (left instanceof LoxArray) {
+                    ((LoxArray)left).add(right);
                     return left;
                 }
 
-                throw new RuntimeError(expr.operator,
+                throw new RuntimeError(operator,
                         "Invalid operands to binary operator '+'.");
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 // Check for division by 0
-                if ((double)right == 0) throw new RuntimeError(expr.operator,
+                if ((double)right == 0) throw new RuntimeError(operator,
                         "Cannot divide by zero.");
 
                 return (double)left / (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left * (double)right;
             case PERCENTAGE:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left % (double)right;
         }
 
@@ -547,28 +618,99 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        try {
+            return call(expr, false);
+        } catch (StackOverflowError error) {
+            // The innermost call that can still build the error reports
+            // it, and every call further out just passes it along.
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+    }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+    // With isTail set, a call to a Lox function isn't made here, but
+    // handed back as TAIL_CALL for the function that's returning.
+    private Object call(Expr.Call expr, boolean isTail) {
+        Object callee;
+        if (expr.callee instanceof Expr.Get) {
+            // obj.method(...) calls the method with obj as its
+            // receiver, without creating a bound method first.
+            Expr.Get get = (Expr.Get)expr.callee;
+            Object object = evaluate(get.object);
+
+            if (object instanceof LoxInstance) {
+                LoxFunction method = get.cache.getMethod((LoxInstance)object, get.name);
+                if (method != null && !method.isGetter()) {
+                    List<Object> arguments = evaluateArguments(expr);
+                    checkArity(expr, method, arguments);
+                    if (isTail) return tailCall(method, (LoxInstance)object, arguments);
+                    return method.invoke(this, (LoxInstance)object, arguments);
+                }
+            }
+
+            callee = maybeDeref(getProperty(get, object));
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            LoxClass superclass = (LoxClass)environment.getAt(superExpr.depth, 0);
+            LoxInstance object =
+                    (LoxInstance)environment.getAt(superExpr.depth - 1, 0);
+            LoxFunction method =
+                    superExpr.cache.get(superclass, superExpr.method);
+
+            if (!method.isGetter()) {
+                List<Object> arguments = evaluateArguments(expr);
+                checkArity(expr, method, arguments);
+                if (isTail) return tailCall(method, object, arguments);
+                return method.invoke(this, object, arguments);
+            }
+
+            callee = method.bind(object);
+        } else {
+            callee = evaluate(expr.callee);
         }
 
+        List<Object> arguments = evaluateArguments(expr);
+
         if (!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren,
                     "Only functions and classes are callable.");
         }
 
         LoxCallable function = (LoxCallable)callee;
+        checkArity(expr, function, arguments);
+
+        if (isTail && function instanceof LoxFunction &&
+                !((LoxFunction)function).isGetter()) {
+            LoxFunction loxFunction = (LoxFunction)function;
+            return tailCall(loxFunction, loxFunction.receiver, arguments);
+        }
 
+        return function.call(this, arguments);
+    }
+
+    private Object tailCall(LoxFunction function, LoxInstance receiver,
+                            List<Object> arguments) {
+        tailFunction = function;
+        tailReceiver = receiver;
+        tailArguments = arguments;
+        return TAIL_CALL;
+    }
+
+    private List<Object> evaluateArguments(Expr.Call expr) {
+        List<Object> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(evaluate(argument));
+        }
+        return arguments;
+    }
+
+    private void checkArity(Expr.Call expr, LoxCallable function,
+                            List<Object> arguments) {
         if (arguments.size() != function.arity()) {
             throw new RuntimeError(expr.paren, "Expected " +
                     function.arity() + " arguments but got " +
                     arguments.size() + "."
             );
         }
-
-        return function.call(this, arguments);
     }
 
     @Override
@@ -578,9 +720,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
+        return getProperty(expr, evaluate(expr.object));
+    }
+
+    private Object getProperty(Expr.Get expr, Object object) {
         if (object instanceof LoxInstance) {
-            Object result = ((LoxInstance) object).get(expr.name);
+            Object result = expr.cache.get((LoxInstance) object, expr.name);
 
             if (result instanceof LoxFunction &&
                     ((LoxFunction) result).isGetter()) {
@@ -590,7 +735,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             return result;
         }
         if (object instanceof NativeInstance) {
-            Object result = ((NativeInstance) object).findMethod(expr.name.lexeme);
+            Object result = ((NativeInstance) object).get(expr.name.lexeme);
             return result;
         }
 
@@ -600,27 +745,52 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitSubscriptExpr(Expr.Subscript expr) {
-        Object listObject = evaluate(expr.object);
-        if (!(listObject instanceof List)) {
-            throw new RuntimeError(expr.name,
+        LoxArray array = checkArray(expr.name, evaluate(expr.object));
+        return array.get(evaluateIndex(expr.name, array, expr.index));
+    }
+
+    // Reads an element without boxing it if the array holds numbers.
+    private double subscriptNumber(Expr.Subscript expr) {
+        LoxArray array = checkArray(expr.name, evaluate(expr.object));
+        return array.getNumber(evaluateIndex(expr.name, array, expr.index));
+    }
+
+    LoxArray checkArray(Token name, Object object) {
+        if (!(object instanceof LoxArray)) {
+            throw new RuntimeError(name,
                     "Only arrays can be subscripted.");
         }
 
-        List list = (List)listObject;
+        return (LoxArray)object;
+    }
 
-        Object indexObject = evaluate(expr.index);
-        if (!(indexObject instanceof Double)) {
-            throw new RuntimeError(expr.name,
+    int checkIndex(Token name, LoxArray array, Object index) {
+        if (!(index instanceof Double)) {
+            throw new RuntimeError(name,
                     "Only numbers can be used as an array index.");
         }
 
-        int index = ((Double) indexObject).intValue();
-        if (index >= list.size()) {
-            throw new RuntimeError(expr.name,
+        return checkIndex(name, array, (double)index);
+    }
+
+    private int checkIndex(Token name, LoxArray array, double indexValue) {
+        int index = (int)indexValue;
+        if (index < 0 || index >= array.size()) {
+            throw new RuntimeError(name,
                     "Array index out of range.");
         }
 
-        return list.get(index);
+        return index;
+    }
+
+    // Loop counters are usually held unboxed, so indexes are read as
+    // numbers where possible.
+    private int evaluateIndex(Token name, LoxArray array, Expr index) {
+        try {
+            return checkIndex(name, array, evaluateNumber(index));
+        } catch (NotANumber notANumber) {
+            return checkIndex(name, array, notANumber.value);
+        }
     }
 
     @Override
@@ -649,92 +819,212 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
+        evaluateForEffect(stmt.expression);
         return null;
     }
 
+    private void evaluateForEffect(Expr expr) {
+        if (expr instanceof Expr.Assign &&
+                isNumeric(((Expr.Assign)expr).value)) {
+            // Nothing uses the value of the assignment, so a number
+            // can go straight into the variable without being boxed.
+            assignNumber((Expr.Assign)expr);
+            return;
+        }
+
+        evaluate(expr);
+    }
+
+    private void assignNumber(Expr.Assign expr) {
+        double value;
+        try {
+            value = evaluateNumber(expr.value);
+        } catch (NotANumber notANumber) {
+            assignValue(expr, notANumber.value);
+            return;
+        }
+
+        if (expr.depth != -1) {
+            Environment scope = environment.ancestor(expr.depth);
+            if (!scope.isReference(expr.slot)) {
+                scope.setNumber(expr.slot, value);
+                return;
+            }
+        }
+
+        assignValue(expr, value);
+    }
+
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
+    public Object visitFunctionStmt(Stmt.Function stmt) {
         LoxFunction function = new LoxFunction(stmt.name.lexeme, stmt.function, environment, false);
         environment.define(stmt.name.lexeme, function);
         return null;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Object visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
-        if (stmt.value != null) value = evaluate(stmt.value);
+        if (stmt.value instanceof Expr.Call) {
+            value = call((Expr.Call)stmt.value, true);
+            if (value == TAIL_CALL) return TAIL_CALL;
+            value = maybeDeref(value);
+        } else if (stmt.value != null) {
+            value = evaluate(stmt.value);
+        }
 
-        throw new Return(value);
+        returnValue = value;
+        return RETURN;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Object visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
         return null;
     }
 
     @Override
-    public Void visitImportStmt(Stmt.Import stmt) {
-        Object module = evaluate(stmt.module);
+    public Object visitImportStmt(Stmt.Import stmt) {
+        importModule(stmt.keyword, evaluate(stmt.module));
+        return null;
+    }
+
+    void importModule(Token keyword, Object module) {
+        module = Rope.flatten(module);
         if (!(module instanceof String)) {
-            throw new RuntimeError(stmt.keyword,
+            throw new RuntimeError(keyword,
                     "Module name must be a string.");
         }
 
         String moduleName = (String)module;
 
         if (moduleName.startsWith("std:")) {
-            String library = moduleName.split(":")[1];
-            if (library.equals("File")) {
-                Lox.run(StandardLibrary.File);
-            } else if (library.equals("Random")) {
-                Lox.run(StandardLibrary.Random);
-            } else if (library.equals("Bitwise")) {
-                globals.define("Bitwise", StandardLibrary.Bitwise);
-            } else if (library.equals("all")) {
-                StandardLibrary.importAll(globals);
+            if (modules.containsKey(moduleName)) return;
+
+            String library = moduleName.substring("std:".length());
+            if (library.equals("all")) {
+                for (String name : StandardLibrary.names()) {
+                    importModule(keyword, "std:" + name);
+                }
             } else {
-                throw new RuntimeError(stmt.keyword,
-                        "'" + moduleName + "' is not a standard library module.");
+                Object value = StandardLibrary.load(library);
+                if (value == null) {
+                    throw new RuntimeError(keyword,
+                            "'" + moduleName + "' is not a standard library module.");
+                }
+                globals.define(library, value);
             }
 
-            return null;
+            modules.put(moduleName, 0L);
+            return;
         }
 
-        String source = "";
+        String source;
 
         try {
-            BufferedReader br = new BufferedReader(new FileReader((String)module));
-            String currentLine;
-            while ((currentLine = br.readLine()) != null) {
-                source += currentLine + "\n";
-            }
-        } catch (IOException exception) {
-            throw new RuntimeError(stmt.keyword,
+            Path path = Paths.get(moduleName).toRealPath();
+            String key = path.toString();
+            long modified = Files.getLastModifiedTime(path).toMillis();
+
+            // Modules always run in the global scope, even when the
+            // import is inside a function, so whatever one defined is
+            // still there for every later importer.
+            Long loaded = modules.get(key);
+            if (loaded != null && loaded == modified) return;
+
+            // Recorded before it runs, so modules that import each
+            // other don't go round in circles.
+            modules.put(key, modified);
+
+            // Statements end at a newline, so the last line needs one.
+            context.files.flush(key);
+            source = Lox.readFile(key) + "\n";
+        } catch (IOException | InvalidPathException exception) {
+            throw new RuntimeError(keyword,
                     "Could not import module '" + module + "'.");
         }
 
-        Lox.run(source);
-
-        return null;
+        context.execute(source, true);
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Object visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+            Object completion = execute(stmt.body);
+            if (completion != null) return completion;
+
+            // Hot loops are handed over to compiled code between
+            // iterations, when all of their state is in the environment.
+            if (stmt.backEdges < Jit.LOOP_THRESHOLD) {
+                stmt.backEdges++;
+            } else if (jit && Jit.runLoop(stmt, environment, globals)) {
+                break;
+            }
         }
         return null;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Object visitForStmt(Stmt.For stmt) {
+        Environment previous = this.environment;
+        try {
+            this.environment = new Environment(previous);
+            if (stmt.initializer != null) execute(stmt.initializer);
+
+            // A body block that no closure can see gets one scope,
+            // emptied at the start of every iteration.
+            Stmt.Block block = null;
+            Environment bodyScope = null;
+            if (stmt.body instanceof Stmt.Block && !((Stmt.Block)stmt.body).captured) {
+                block = (Stmt.Block)stmt.body;
+            }
+
+            while (isTruthy(evaluate(stmt.condition))) {
+                Object completion;
+                if (block != null) {
+                    if (bodyScope == null) {
+                        bodyScope = new Environment(environment);
+                    } else {
+                        bodyScope.reset();
+                    }
+                    completion = executeBlock(block.statements, bodyScope);
+                } else {
+                    completion = execute(stmt.body);
+                }
+                if (completion != null) return completion;
+
+                if (stmt.increment != null) evaluateForEffect(stmt.increment);
+
+                if (stmt.backEdges < Jit.LOOP_THRESHOLD) {
+                    stmt.backEdges++;
+                } else if (jit && Jit.runLoop(stmt, environment, globals)) {
+                    break;
+                }
+            }
+            return null;
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    @Override
+    public Object visitVarStmt(Stmt.Var stmt) {
+        if (isNumeric(stmt.initializer)) {
+            try {
+                environment.defineNumber(stmt.name.lexeme,
+                        evaluateNumber(stmt.initializer));
+                return null;
+            } catch (NotANumber notANumber) {
+                environment.define(stmt.name.lexeme, notANumber.value);
+                return null;
+            }
+        }
+
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluateWithoutDeref(stmt.initializer);
@@ -745,13 +1035,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        return executeBlock(stmt.statements, new Environment(environment));
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Object visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -761,10 +1050,19 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
+        LoxClass klass = createClass(stmt, (LoxClass)superclass, environment);
 
-        if (stmt.superclass != null) {
-            environment = new Environment(environment);
+        // Methods only look the class up when they're called, so it's
+        // safe to define it once it's complete. Doing it here keeps the
+        // class in the slot the resolver gave it.
+        environment.define(stmt.name.lexeme, klass);
+        return null;
+    }
+
+    LoxClass createClass(Stmt.Class stmt, LoxClass superclass,
+                         Environment environment) {
+        if (superclass != null) {
+            environment = new Environment(environment, 1);
             environment.define("super", superclass);
         }
 
@@ -776,7 +1074,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         LoxClass metaclass = new LoxClass(null,
-                stmt.name.lexeme + " metaclass", (LoxClass)superclass, classMethods);
+                stmt.name.lexeme + " metaclass", superclass, classMethods);
 
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
@@ -785,15 +1083,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             methods.put(method.name.lexeme, function);
         }
 
-        LoxClass klass = new LoxClass(metaclass, stmt.name.lexeme,
-                (LoxClass)superclass, methods);
-
-        if (superclass != null) {
-            environment = environment.enclosing;
-        }
-
-        environment.assign(stmt.name, klass);
-        return null;
+        return new LoxClass(metaclass, stmt.name.lexeme, superclass, methods);
     }
 
     public void checkNumberOperand(Token operator, Object operand) {
@@ -806,34 +1096,34 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    boolean isEqual(Object a, Object b) {
         // nil is only equal to nil.
         if (a == null && b == null) return true;
         if (a == null) return false;
 
-        return a.equals(b);
+        return Rope.flatten(a).equals(Rope.flatten(b));
     }
 
-    private String stringify(Object object) {
+    String stringify(Object object) {
         if (object == null) return "nil";
 
-        if (object instanceof List) {
-            String text = "[";
-            List<Object> list = (List<Object>)object;
-            for (int i = 0; i < list.size(); ++i) {
-                text += stringify(list.get(i));
-                if (i != list.size() - 1) {
-                    text += ", ";
+        if (object instanceof LoxArray) {
+            LoxArray array = (LoxArray)object;
+            StringBuilder text = new StringBuilder("[");
+            for (int i = 0; i < array.size(); ++i) {
+                text.append(stringify(array.get(i)));
+                if (i != array.size() - 1) {
+                    text.append(", ");
                 }
             }
-            text += "]";
-            return text;
+            text.append("]");
+            return text.toString();
         }
 
         // Work around java adding ".0" to integer-valued doubles
@@ -849,14 +1139,71 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return object.toString();
     }
 
-    private Object evaluate(Expr expr) {
+    Object evaluate(Expr expr) {
         return maybeDeref(expr.accept(this));
     }
 
+    // Evaluates an expression that's expected to produce a number,
+    // without boxing it. If the value turns out not to be a number,
+    // throws NotANumber carrying it instead.
+    double evaluateNumber(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (binary.node.isNumeric()) return binary.node.executeNumber(this, binary);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.node.isNumeric()) return unary.node.executeNumber(this, unary);
+        } else if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable)expr;
+            if (variable.depth != -1) {
+                Environment scope = environment.ancestor(variable.depth);
+                if (scope.isNumber(variable.slot)) return scope.number(variable.slot);
+            }
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Subscript) {
+            return subscriptNumber((Expr.Subscript)expr);
+        }
+
+        Object value = evaluate(expr);
+        if (value instanceof Double) return (double)value;
+        throw new NotANumber(value);
+    }
+
+    // Whether an expression has settled on producing numbers.
+    private boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Binary) return ((Expr.Binary)expr).node.isNumeric();
+        if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).node.isNumeric();
+        return false;
+    }
+
     private Object evaluateWithoutDeref(Expr expr) {
         return expr.accept(this);
     }
 
+    // The bytecode VM keeps its own environment chain, so references
+    // (which point back into the syntax tree) are followed from here.
+    Object evaluateIn(Expr expr, Environment environment) {
+        Environment previous = this.environment;
+        try {
+            this.environment = environment;
+            return evaluate(expr);
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    void assignReferenceIn(Reference target, Object value,
+                           Environment environment) {
+        Environment previous = this.environment;
+        try {
+            this.environment = environment;
+            assignReference(target, value);
+        } finally {
+            this.environment = previous;
+        }
+    }
+
     private Object maybeDeref(Object object) {
         if (object instanceof Reference) {
             return evaluate(((Reference)object).drf());
@@ -864,22 +1211,29 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return object;
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    // Returns null when the statement completes normally, or RETURN or
+    // TAIL_CALL when it executed a return statement.
+    private Object execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    public void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    // Hands over the value of the return statement that just ran.
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    Object executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
 
             for (Stmt statement : statements) {
-                execute(statement);
+                Object completion = execute(statement);
+                if (completion != null) return completion;
             }
+            return null;
         } finally {
             this.environment = previous;
         }
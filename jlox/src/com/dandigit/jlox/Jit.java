@@ -0,0 +1,898 @@
+package com.dandigit.jlox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.dandigit.jlox.ClassFileWriter.*;
+
+// The top tier of the tree-walking interpreter. Functions and while
+// loops count how often they run, and once they're hot we try to turn
+// them into a JVM method, defined as a hidden class, that HotSpot can
+// inline and keep in registers.
+//
+// Only numeric code is compiled: number literals, arithmetic, locals,
+// variables from outside the unit that hold numbers, comparisons in
+// conditions, if/while/return, and calls from a function to itself.
+// None of that can run foreign code, so every assumption the compiled
+// code makes is checked once on entry. If a guard fails (a global was
+// rebound, a variable stopped holding a number) the call or loop just
+// runs in the interpreter instead, and a unit that keeps failing its
+// guards is given up on.
+class Jit {
+    static final int FUNCTION_THRESHOLD = 1000;
+    static final int LOOP_THRESHOLD = 1000;
+    private static final int MAX_DEOPTIMIZATIONS = 100;
+
+    // Marks a function or loop that we can't, or won't, compile.
+    static final Unit UNSUPPORTED = new Unit(null, null, null, null);
+
+    // Lookup.defineHiddenClass(bytes, true), which only Java 15 and
+    // later have. It's looked up at run time so jlox still builds and
+    // runs on older versions, where nothing is compiled.
+    private static final MethodHandle DEFINE_HIDDEN_CLASS = findDefineHiddenClass();
+
+    private static final String TOKENS = "[Lcom/dandigit/jlox/Token;";
+    private static final String CLASS_NAME = "com/dandigit/jlox/JitCode";
+
+    static final class Unit {
+        final MethodHandle entry;
+        final Token[] tokens;
+        final List<External> externals;
+
+        // The variable a function calls itself through, if any.
+        final External self;
+        int deoptimizations = 0;
+
+        Unit(MethodHandle entry, Token[] tokens, List<External> externals,
+             External self) {
+            this.entry = entry;
+            this.tokens = tokens;
+            this.externals = externals;
+            this.self = self;
+        }
+    }
+
+    // A variable the unit uses but doesn't declare. Locals are found
+    // relative to the environment the unit runs in: the closure for a
+    // function, the current scope for a loop.
+    static final class External {
+        final Token name;
+        final int depth;
+        final int slot;
+        boolean assigned = false;
+
+        // A global's cell, once it has been defined.
+        Environment.Cell cell;
+
+        External(Token name, int depth, int slot) {
+            this.name = name;
+            this.depth = depth;
+            this.slot = slot;
+        }
+    }
+
+    // Runs a call to a hot function. Returns null if the call has to be
+    // made by the interpreter; compiled code never returns nil.
+    static Object callFunction(LoxFunction function, Interpreter interpreter,
+                               List<Object> arguments) {
+        Expr.Function declaration = function.declaration;
+        if (declaration.jit == null) {
+            declaration.jit = compileFunction(function);
+        }
+
+        Unit unit = declaration.jit;
+        if (unit == UNSUPPORTED) return null;
+
+        if (unit.self != null &&
+                read(unit.self, function.closure, interpreter.globals) != function) {
+            return deoptimize(declaration, unit);
+        }
+
+        double[] values = new double[arguments.size() + unit.externals.size()];
+        for (int i = 0; i < arguments.size(); ++i) {
+            Object argument = arguments.get(i);
+            if (!(argument instanceof Double)) return deoptimize(declaration, unit);
+            values[i] = (double)argument;
+        }
+
+        if (!readExternals(unit, function.closure, interpreter.globals,
+                values, arguments.size())) {
+            return deoptimize(declaration, unit);
+        }
+
+        try {
+            return (double)unit.entry.invokeExact(unit.tokens, values);
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable);
+        }
+    }
+
+    // Runs the rest of a hot loop. Returns false if the interpreter has
+    // to carry on with it instead.
+    static boolean runLoop(Stmt.While stmt, Environment environment,
+                           Environment globals) {
+        if (stmt.jit == null) {
+            stmt.jit = compileLoop(stmt);
+        }
+
+        if (runLoop(stmt.jit, environment, globals)) return true;
+        if (stmt.jit.deoptimizations > MAX_DEOPTIMIZATIONS) stmt.jit = UNSUPPORTED;
+        return false;
+    }
+
+    // A for loop is compiled from its condition on, as the initializer
+    // has already run by the time it's hot.
+    static boolean runLoop(Stmt.For stmt, Environment environment,
+                           Environment globals) {
+        if (stmt.jit == null) {
+            stmt.jit = compileLoop(stmt);
+        }
+
+        if (runLoop(stmt.jit, environment, globals)) return true;
+        if (stmt.jit.deoptimizations > MAX_DEOPTIMIZATIONS) stmt.jit = UNSUPPORTED;
+        return false;
+    }
+
+    private static boolean runLoop(Unit unit, Environment environment,
+                                   Environment globals) {
+        if (unit == UNSUPPORTED) return false;
+
+        double[] values = new double[unit.externals.size()];
+        if (!readExternals(unit, environment, globals, values, 0)) {
+            unit.deoptimizations++;
+            return false;
+        }
+
+        try {
+            unit.entry.invokeExact(unit.tokens, values);
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable throwable) {
+            throw new IllegalStateException(throwable);
+        } finally {
+            // The compiled loop keeps variables in registers and hands
+            // them back when it finishes, even if it finishes by throwing.
+            for (int i = 0; i < unit.externals.size(); ++i) {
+                External external = unit.externals.get(i);
+                if (!external.assigned) continue;
+
+                if (external.depth == -1) {
+                    external.cell.value = values[i];
+                } else {
+                    environment.ancestor(external.depth).setNumber(external.slot, values[i]);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    // Called by compiled code.
+    static double divide(double left, double right, Token operator) {
+        if (right == 0) throw new RuntimeError(operator, "Cannot divide by zero.");
+        return left / right;
+    }
+
+    // Called by compiled code. Lox compares numbers with equals(), so
+    // NaN equals itself and 0 doesn't equal -0.
+    static boolean isEqual(double left, double right) {
+        return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+    }
+
+    private static boolean readExternals(Unit unit, Environment environment,
+                                         Environment globals, double[] values,
+                                         int offset) {
+        for (int i = 0; i < unit.externals.size(); ++i) {
+            External external = unit.externals.get(i);
+
+            // Locals are read without boxing them.
+            if (external.depth != -1) {
+                Environment scope = environment.ancestor(external.depth);
+                if (!scope.isNumber(external.slot)) return false;
+                values[offset + i] = scope.number(external.slot);
+                continue;
+            }
+
+            Object value = read(external, environment, globals);
+            if (!(value instanceof Double)) return false;
+            values[offset + i] = (double)value;
+        }
+        return true;
+    }
+
+    private static Object read(External external, Environment environment,
+                               Environment globals) {
+        if (external.depth != -1) {
+            return environment.getAt(external.depth, external.slot);
+        }
+
+        if (external.cell == null) {
+            if (!globals.isDefined(external.name)) return null;
+            external.cell = globals.cell(external.name);
+        }
+        return external.cell.value;
+    }
+
+    private static Object deoptimize(Expr.Function declaration, Unit unit) {
+        if (++unit.deoptimizations > MAX_DEOPTIMIZATIONS) {
+            declaration.jit = UNSUPPORTED;
+        }
+        return null;
+    }
+
+    private static Unit compileFunction(LoxFunction function) {
+        Expr.Function declaration = function.declaration;
+        if (DEFINE_HIDDEN_CLASS == null || declaration.isMethod ||
+                declaration.params == null) {
+            return UNSUPPORTED;
+        }
+
+        try {
+            UnitCompiler compiler = new UnitCompiler(true, function.name,
+                    declaration.params.size());
+            return compiler.compileFunction(declaration);
+        } catch (Unsupported | IllegalStateException | LinkageError |
+                 ReflectiveOperationException unsupported) {
+            return UNSUPPORTED;
+        }
+    }
+
+    private static Unit compileLoop(Stmt stmt) {
+        if (DEFINE_HIDDEN_CLASS == null) return UNSUPPORTED;
+
+        try {
+            return new UnitCompiler(false, null, 0).compileLoop(stmt);
+        } catch (Unsupported | IllegalStateException | LinkageError |
+                 ReflectiveOperationException unsupported) {
+            return UNSUPPORTED;
+        }
+    }
+
+    private static MethodHandle findDefineHiddenClass() {
+        try {
+            Class<?> options = Class.forName(
+                    "java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            Object noOptions = Array.newInstance(options, 0);
+
+            MethodHandle define = MethodHandles.publicLookup().findVirtual(
+                    MethodHandles.Lookup.class, "defineHiddenClass",
+                    MethodType.methodType(MethodHandles.Lookup.class, byte[].class,
+                            boolean.class, noOptions.getClass()));
+            return MethodHandles.insertArguments(define, 3, noOptions);
+        } catch (ReflectiveOperationException | RuntimeException exception) {
+            return null;
+        }
+    }
+
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Compiles one function or loop. The tree is walked twice: once to
+    // check that everything in it is supported and to find the
+    // variables it uses from outside, and once to emit the code.
+    private static class UnitCompiler {
+        private final String selfName;
+        private final int parameterCount;
+        private final boolean isFunction;
+
+        private final List<External> externals = new ArrayList<>();
+        private final Map<String, External> externalsByKey = new HashMap<>();
+        private final Map<External, Integer> externalSlots = new HashMap<>();
+        private External self = null;
+
+        private final List<Token> tokens = new ArrayList<>();
+
+        // The unit's own scopes, innermost last. Each one lists the JVM
+        // local slot of every Lox slot declared in it so far.
+        private final List<List<Integer>> scopes = new ArrayList<>();
+
+        private ClassFileWriter writer;
+        private ClassFileWriter.MethodWriter method;
+        private String invokeDescriptor;
+        private int frameStart;
+        private int nextSlot;
+
+        // Where a function's body starts, for self calls in tail
+        // position to jump back to.
+        private Label bodyStart;
+
+        UnitCompiler(boolean isFunction, String selfName, int parameterCount) {
+            this.isFunction = isFunction;
+            this.selfName = selfName;
+            this.parameterCount = parameterCount;
+        }
+
+        Unit compileFunction(Expr.Function declaration)
+                throws ReflectiveOperationException {
+            // The parameters and the body share the function's scope.
+            scopes.add(new ArrayList<>());
+            for (Stmt statement : declaration.body) {
+                scan(statement, true);
+            }
+            scopes.clear();
+
+            int doubles = parameterCount + externals.size();
+            if (doubles > 127) throw new Unsupported();
+
+            StringBuilder descriptor = new StringBuilder("(" + TOKENS);
+            String[] fixedLocals = new String[doubles + 1];
+            fixedLocals[0] = TOKENS;
+            for (int i = 0; i < doubles; ++i) {
+                descriptor.append("D");
+                fixedLocals[i + 1] = "D";
+            }
+            invokeDescriptor = descriptor.append(")D").toString();
+
+            writer = new ClassFileWriter(CLASS_NAME);
+
+            // call(tokens, values) unpacks the values into parameters.
+            ClassFileWriter.MethodWriter call = writer.addMethod("call", "(" + TOKENS + "[D)D",
+                    TOKENS, "[D");
+            call.loadReference(0);
+            for (int i = 0; i < doubles; ++i) {
+                call.loadReference(1);
+                call.pushInt(i);
+                call.op(DALOAD, 0);
+            }
+            call.invokeStatic(CLASS_NAME, "invoke", invokeDescriptor, -2 * doubles + 1);
+            call.op(DRETURN, -2);
+
+            method = writer.addMethod("invoke", invokeDescriptor, fixedLocals);
+
+            List<Integer> parameters = new ArrayList<>();
+            for (int i = 0; i < parameterCount; ++i) {
+                parameters.add(1 + i * 2);
+            }
+            for (int i = 0; i < externals.size(); ++i) {
+                externalSlots.put(externals.get(i), 1 + (parameterCount + i) * 2);
+            }
+
+            frameStart = method.firstFreeSlot();
+            nextSlot = frameStart;
+            scopes.add(parameters);
+
+            bodyStart = new Label();
+            bind(bodyStart);
+
+            for (Stmt statement : declaration.body) {
+                statement(statement);
+            }
+
+            // Falling off the end returns nil, which isn't a number.
+            if (method.isReachable()) throw new Unsupported();
+
+            return define("(" + TOKENS + "[D)D", self);
+        }
+
+        Unit compileLoop(Stmt stmt) throws ReflectiveOperationException {
+            // A for loop's own scope is already in the environment.
+            if (stmt instanceof Stmt.For) {
+                scanForLoop((Stmt.For)stmt);
+            } else {
+                scan(stmt, false);
+            }
+            if (externals.size() > 100) throw new Unsupported();
+
+            writer = new ClassFileWriter(CLASS_NAME);
+            method = writer.addMethod("call", "(" + TOKENS + "[D)V", TOKENS, "[D");
+            frameStart = method.firstFreeSlot();
+            nextSlot = frameStart;
+
+            // Load everything from outside into locals up front...
+            for (External external : externals) {
+                int slot = nextSlot;
+                nextSlot += 2;
+                externalSlots.put(external, slot);
+
+                method.loadReference(1);
+                method.pushInt(externals.indexOf(external));
+                method.op(DALOAD, 0);
+                method.storeDouble(slot);
+            }
+
+            int start = method.position();
+            if (stmt instanceof Stmt.For) {
+                forLoop((Stmt.For)stmt);
+            } else {
+                statement(stmt);
+            }
+
+            // ...and hand them back when we leave.
+            if (method.isReachable()) {
+                storeExternals();
+                method.op(RETURN, 0);
+            }
+
+            int end = method.position();
+            Label handler = new Label();
+            method.addHandler(start, end, handler);
+            method.bindHandler(handler, externals.size());
+
+            int exception = nextSlot;
+            method.storeReference(exception);
+            storeExternals();
+            method.loadReference(exception);
+            method.op(ATHROW, -1);
+
+            return define("(" + TOKENS + "[D)V", null);
+        }
+
+        private Unit define(String entryDescriptor, External self)
+                throws ReflectiveOperationException {
+            MethodHandles.Lookup lookup;
+            try {
+                lookup = (MethodHandles.Lookup)DEFINE_HIDDEN_CLASS.invokeExact(
+                        MethodHandles.lookup(), writer.toByteArray(), true);
+            } catch (ReflectiveOperationException | RuntimeException | Error error) {
+                throw error;
+            } catch (Throwable throwable) {
+                throw new IllegalStateException(throwable);
+            }
+
+            MethodHandle entry = lookup.findStatic(lookup.lookupClass(), "call",
+                    MethodType.fromMethodDescriptorString(entryDescriptor,
+                            Jit.class.getClassLoader()));
+
+            return new Unit(entry, tokens.toArray(new Token[0]), externals, self);
+        }
+
+        private void storeExternals() {
+            for (int i = 0; i < externals.size(); ++i) {
+                External external = externals.get(i);
+                if (!external.assigned) continue;
+
+                method.loadReference(1);
+                method.pushInt(i);
+                method.loadDouble(externalSlots.get(external));
+                method.op(DASTORE, -4);
+            }
+        }
+
+        // First pass: everything must be supported, and we note the
+        // variables that come from outside the unit.
+
+        private void scan(Stmt stmt, boolean canDeclare) {
+            if (stmt instanceof Stmt.Block) {
+                scopes.add(new ArrayList<>());
+                for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                    scan(statement, true);
+                }
+                scopes.remove(scopes.size() - 1);
+            } else if (stmt instanceof Stmt.Expression) {
+                scanNumber(((Stmt.Expression)stmt).expression);
+            } else if (stmt instanceof Stmt.Var && canDeclare) {
+                Stmt.Var var = (Stmt.Var)stmt;
+                if (var.initializer == null) throw new Unsupported();
+                scanNumber(var.initializer);
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If)stmt;
+                scanCondition(ifStmt.condition);
+                scan(ifStmt.thenBranch, false);
+                if (ifStmt.elseBranch != null) scan(ifStmt.elseBranch, false);
+            } else if (stmt instanceof Stmt.While) {
+                Stmt.While whileStmt = (Stmt.While)stmt;
+                scanCondition(whileStmt.condition);
+                scan(whileStmt.body, false);
+            } else if (stmt instanceof Stmt.For) {
+                Stmt.For forStmt = (Stmt.For)stmt;
+                scopes.add(new ArrayList<>());
+                if (forStmt.initializer != null) scan(forStmt.initializer, true);
+                scanForLoop(forStmt);
+                scopes.remove(scopes.size() - 1);
+            } else if (stmt instanceof Stmt.Return && isFunction) {
+                Stmt.Return returnStmt = (Stmt.Return)stmt;
+                if (returnStmt.value == null) throw new Unsupported();
+                scanNumber(returnStmt.value);
+            } else {
+                throw new Unsupported();
+            }
+        }
+
+        private void scanForLoop(Stmt.For stmt) {
+            scanCondition(stmt.condition);
+            scan(stmt.body, false);
+            if (stmt.increment != null) scanNumber(stmt.increment);
+        }
+
+        private void scanCondition(Expr expr) {
+            if (expr instanceof Expr.Literal) return;
+
+            if (expr instanceof Expr.Grouping) {
+                scanCondition(((Expr.Grouping)expr).expression);
+            } else if (expr instanceof Expr.Unary &&
+                    ((Expr.Unary)expr).operator.type == TokenType.BANG) {
+                scanCondition(((Expr.Unary)expr).right);
+            } else if (expr instanceof Expr.Logical) {
+                scanCondition(((Expr.Logical)expr).left);
+                scanCondition(((Expr.Logical)expr).right);
+            } else if (isComparison(expr)) {
+                scanNumber(((Expr.Binary)expr).left);
+                scanNumber(((Expr.Binary)expr).right);
+            } else {
+                scanNumber(expr);
+            }
+        }
+
+        private void scanNumber(Expr expr) {
+            if (expr instanceof Expr.Literal) {
+                if (!(((Expr.Literal)expr).value instanceof Double)) {
+                    throw new Unsupported();
+                }
+            } else if (expr instanceof Expr.Grouping) {
+                scanNumber(((Expr.Grouping)expr).expression);
+            } else if (expr instanceof Expr.Variable) {
+                Expr.Variable variable = (Expr.Variable)expr;
+                External external = external(variable.name, variable.depth, variable.slot);
+                if (external == self && external != null) throw new Unsupported();
+            } else if (expr instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign)expr;
+                scanNumber(assign.value);
+
+                External external = external(assign.name, assign.depth, assign.slot);
+                if (external != null) {
+                    // A function only reads from outside; it would have
+                    // to hand its changes back around every recursive call.
+                    if (isFunction || external == self) throw new Unsupported();
+                    external.assigned = true;
+                }
+            } else if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary)expr;
+                if (unary.operator.type != TokenType.MINUS) throw new Unsupported();
+                scanNumber(unary.right);
+            } else if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary)expr;
+                switch (binary.operator.type) {
+                    case PLUS:
+                    case MINUS:
+                    case STAR:
+                    case SLASH:
+                    case PERCENTAGE:
+                    case COMMA:
+                        break;
+                    default:
+                        throw new Unsupported();
+                }
+                scanNumber(binary.left);
+                scanNumber(binary.right);
+            } else if (expr instanceof Expr.Call) {
+                scanCall((Expr.Call)expr);
+            } else {
+                throw new Unsupported();
+            }
+        }
+
+        // The only calls we compile are a function calling itself.
+        private void scanCall(Expr.Call call) {
+            if (!isFunction || selfName == null ||
+                    !(call.callee instanceof Expr.Variable) ||
+                    call.arguments.size() != parameterCount) {
+                throw new Unsupported();
+            }
+
+            Expr.Variable callee = (Expr.Variable)call.callee;
+            if (!callee.name.lexeme.equals(selfName) ||
+                    isInternal(callee.depth)) {
+                throw new Unsupported();
+            }
+
+            String key = key(callee.name, callee.depth, callee.slot);
+            if (self == null) {
+                if (externalsByKey.containsKey(key)) throw new Unsupported();
+
+                self = new External(callee.name, externalDepth(callee.depth),
+                        callee.slot);
+                externalsByKey.put(key, self);
+            } else if (externalsByKey.get(key) != self) {
+                throw new Unsupported();
+            }
+
+            for (Expr argument : call.arguments) {
+                scanNumber(argument);
+            }
+        }
+
+        // Returns null for the unit's own variables.
+        private External external(Token name, int depth, int slot) {
+            if (isInternal(depth)) return null;
+
+            String key = key(name, depth, slot);
+            External external = externalsByKey.get(key);
+            if (external == null) {
+                external = new External(name, externalDepth(depth), slot);
+                externalsByKey.put(key, external);
+                externals.add(external);
+            }
+            return external;
+        }
+
+        private boolean isInternal(int depth) {
+            return depth != -1 && depth < scopes.size();
+        }
+
+        private int externalDepth(int depth) {
+            return depth == -1 ? -1 : depth - scopes.size();
+        }
+
+        private String key(Token name, int depth, int slot) {
+            if (depth == -1) return name.lexeme;
+            return externalDepth(depth) + ":" + slot;
+        }
+
+        private boolean isComparison(Expr expr) {
+            if (!(expr instanceof Expr.Binary)) return false;
+
+            switch (((Expr.Binary)expr).operator.type) {
+                case GREATER:
+                case GREATER_EQUAL:
+                case LESS:
+                case LESS_EQUAL:
+                case EQUAL_EQUAL:
+                case BANG_EQUAL:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        // Second pass: emit the code. Locals are handed out in stack
+        // order, so the live ones are always a run of doubles right
+        // after the fixed ones, which is all a stack map frame needs.
+
+        private int frameDoubles() {
+            return (nextSlot - frameStart) / 2;
+        }
+
+        private void bind(Label label) {
+            method.bind(label, frameDoubles());
+        }
+
+        private void statement(Stmt stmt) {
+            // Code after a return is dead, and the verifier won't have it.
+            if (!method.isReachable()) return;
+
+            if (stmt instanceof Stmt.Block) {
+                int slot = nextSlot;
+                scopes.add(new ArrayList<>());
+                for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                    statement(statement);
+                }
+                scopes.remove(scopes.size() - 1);
+                nextSlot = slot;
+            } else if (stmt instanceof Stmt.Expression) {
+                number(((Stmt.Expression)stmt).expression);
+                method.op(POP2, -2);
+            } else if (stmt instanceof Stmt.Var) {
+                number(((Stmt.Var)stmt).initializer);
+
+                int slot = nextSlot;
+                nextSlot += 2;
+                scopes.get(scopes.size() - 1).add(slot);
+                method.storeDouble(slot);
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If)stmt;
+                Label elseLabel = new Label();
+                condition(ifStmt.condition, false, elseLabel);
+                statement(ifStmt.thenBranch);
+
+                if (ifStmt.elseBranch != null) {
+                    Label endLabel = new Label();
+                    if (method.isReachable()) method.jump(GOTO, endLabel);
+                    bind(elseLabel);
+                    statement(ifStmt.elseBranch);
+                    bind(endLabel);
+                } else {
+                    bind(elseLabel);
+                }
+            } else if (stmt instanceof Stmt.While) {
+                Stmt.While whileStmt = (Stmt.While)stmt;
+                Label loopStart = new Label();
+                Label exitLabel = new Label();
+
+                bind(loopStart);
+                condition(whileStmt.condition, false, exitLabel);
+                statement(whileStmt.body);
+                if (method.isReachable()) method.jump(GOTO, loopStart);
+                bind(exitLabel);
+            } else if (stmt instanceof Stmt.For) {
+                Stmt.For forStmt = (Stmt.For)stmt;
+                int slot = nextSlot;
+                scopes.add(new ArrayList<>());
+                if (forStmt.initializer != null) statement(forStmt.initializer);
+                forLoop(forStmt);
+                scopes.remove(scopes.size() - 1);
+                nextSlot = slot;
+            } else if (stmt instanceof Stmt.Return) {
+                Expr value = ((Stmt.Return)stmt).value;
+
+                // A call in tail position is always to the function
+                // itself: it replaces the parameters and starts over.
+                if (value instanceof Expr.Call) {
+                    for (Expr argument : ((Expr.Call)value).arguments) {
+                        number(argument);
+                    }
+                    for (int i = parameterCount - 1; i >= 0; --i) {
+                        method.storeDouble(1 + i * 2);
+                    }
+                    method.jump(GOTO, bodyStart);
+                    return;
+                }
+
+                number(value);
+                method.op(DRETURN, -2);
+            }
+        }
+
+        // The loop itself, without the initializer or its scope.
+        private void forLoop(Stmt.For stmt) {
+            Label loopStart = new Label();
+            Label exitLabel = new Label();
+
+            bind(loopStart);
+            condition(stmt.condition, false, exitLabel);
+            statement(stmt.body);
+            if (method.isReachable()) {
+                if (stmt.increment != null) {
+                    number(stmt.increment);
+                    method.op(POP2, -2);
+                }
+                method.jump(GOTO, loopStart);
+            }
+            bind(exitLabel);
+        }
+
+        // Jumps to target if the condition's truthiness is jumpWhen,
+        // and falls through otherwise.
+        private void condition(Expr expr, boolean jumpWhen, Label target) {
+            // The left of 'false and x' may already have jumped away.
+            if (!method.isReachable()) return;
+
+            if (expr instanceof Expr.Literal) {
+                Object value = ((Expr.Literal)expr).value;
+                boolean truthy = value != null && !value.equals(false);
+                if (truthy == jumpWhen) method.jump(GOTO, target);
+            } else if (expr instanceof Expr.Grouping) {
+                condition(((Expr.Grouping)expr).expression, jumpWhen, target);
+            } else if (expr instanceof Expr.Unary &&
+                    ((Expr.Unary)expr).operator.type == TokenType.BANG) {
+                condition(((Expr.Unary)expr).right, !jumpWhen, target);
+            } else if (expr instanceof Expr.Logical) {
+                Expr.Logical logical = (Expr.Logical)expr;
+                boolean isOr = logical.operator.type == TokenType.OR;
+
+                if (isOr == jumpWhen) {
+                    // Either side settles it.
+                    condition(logical.left, jumpWhen, target);
+                    condition(logical.right, jumpWhen, target);
+                } else {
+                    Label skip = new Label();
+                    condition(logical.left, !jumpWhen, skip);
+                    condition(logical.right, jumpWhen, target);
+                    bind(skip);
+                }
+            } else if (isComparison(expr)) {
+                comparison((Expr.Binary)expr, jumpWhen, target);
+            } else {
+                // Numbers are always truthy.
+                number(expr);
+                method.op(POP2, -2);
+                if (jumpWhen) method.jump(GOTO, target);
+            }
+        }
+
+        private void comparison(Expr.Binary expr, boolean jumpWhen, Label target) {
+            number(expr.left);
+            number(expr.right);
+
+            // dcmpg and dcmpl differ in what they give NaN, and a
+            // comparison with NaN must always come out false.
+            switch (expr.operator.type) {
+                case LESS:
+                    method.op(DCMPG, -3);
+                    method.jump(jumpWhen ? IFLT : IFGE, target);
+                    break;
+                case LESS_EQUAL:
+                    method.op(DCMPG, -3);
+                    method.jump(jumpWhen ? IFLE : IFGT, target);
+                    break;
+                case GREATER:
+                    method.op(DCMPL, -3);
+                    method.jump(jumpWhen ? IFGT : IFLE, target);
+                    break;
+                case GREATER_EQUAL:
+                    method.op(DCMPL, -3);
+                    method.jump(jumpWhen ? IFGE : IFLT, target);
+                    break;
+                case EQUAL_EQUAL:
+                    method.invokeStatic("com/dandigit/jlox/Jit", "isEqual", "(DD)Z", -3);
+                    method.jump(jumpWhen ? IFNE : IFEQ, target);
+                    break;
+                case BANG_EQUAL:
+                    method.invokeStatic("com/dandigit/jlox/Jit", "isEqual", "(DD)Z", -3);
+                    method.jump(jumpWhen ? IFEQ : IFNE, target);
+                    break;
+            }
+        }
+
+        private void number(Expr expr) {
+            if (expr instanceof Expr.Literal) {
+                method.pushDouble((double)((Expr.Literal)expr).value);
+            } else if (expr instanceof Expr.Grouping) {
+                number(((Expr.Grouping)expr).expression);
+            } else if (expr instanceof Expr.Variable) {
+                Expr.Variable variable = (Expr.Variable)expr;
+                method.loadDouble(slotOf(variable.name, variable.depth, variable.slot));
+            } else if (expr instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign)expr;
+                number(assign.value);
+                method.op(DUP2, 2);
+                method.storeDouble(slotOf(assign.name, assign.depth, assign.slot));
+            } else if (expr instanceof Expr.Unary) {
+                number(((Expr.Unary)expr).right);
+                method.op(DNEG, 0);
+            } else if (expr instanceof Expr.Binary) {
+                binary((Expr.Binary)expr);
+            } else if (expr instanceof Expr.Call) {
+                call((Expr.Call)expr);
+            }
+        }
+
+        private void binary(Expr.Binary expr) {
+            number(expr.left);
+
+            if (expr.operator.type == TokenType.COMMA) {
+                method.op(POP2, -2);
+                number(expr.right);
+                return;
+            }
+
+            number(expr.right);
+
+            switch (expr.operator.type) {
+                case PLUS: method.op(DADD, -2); break;
+                case MINUS: method.op(DSUB, -2); break;
+                case STAR: method.op(DMUL, -2); break;
+                case PERCENTAGE: method.op(DREM, -2); break;
+                case SLASH:
+                    // Dividing by zero is an error, so it needs the token.
+                    method.loadReference(0);
+                    method.pushInt(tokens.size());
+                    method.op(AALOAD, -1);
+                    tokens.add(expr.operator);
+                    method.invokeStatic("com/dandigit/jlox/Jit", "divide",
+                            "(DD" + TOKENS.substring(1) + ")D", -3);
+                    break;
+            }
+        }
+
+        private void call(Expr.Call expr) {
+            method.loadReference(0);
+            for (Expr argument : expr.arguments) {
+                number(argument);
+            }
+            for (External external : externals) {
+                method.loadDouble(externalSlots.get(external));
+            }
+
+            int doubles = parameterCount + externals.size();
+            method.invokeStatic(CLASS_NAME, "invoke", invokeDescriptor, -2 * doubles + 1);
+        }
+
+        private int slotOf(Token name, int depth, int slot) {
+            if (isInternal(depth)) {
+                return scopes.get(scopes.size() - 1 - depth).get(slot);
+            }
+            return externalSlots.get(externalsByKey.get(key(name, depth, slot)));
+        }
+    }
+}
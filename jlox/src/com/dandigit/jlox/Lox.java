@@ -1,21 +1,17 @@
 package com.dandigit.jlox;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
 
+// The jlox command. Scripts run in a context of their own, the same
+// way a program embedding Lox would run them with a LoxEngine.
 public class Lox {
-    public static final List<Object> argv = new ArrayList<>();
-
-    private static final Interpreter interpreter = new Interpreter();
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
-
     class ErrorCode
     {
         public static final int INVALID_ARGUMENTS = 64;
@@ -24,89 +20,160 @@ public class Lox {
         public static final int RUNTIME_ERROR = 75;
     }
 
-    public static void main(String[] args) throws IOException {
-        if (args.length >= 1) {
+    public static void main(final String[] args) throws IOException {
+        // Options come before the script path
+        int first = 0;
+        long stackSize = 0;
+        boolean useVm = false;
+        boolean jit = true;
+        boolean cache = true;
+        while (first < args.length && args[first].startsWith("--")) {
+            if (args[first].equals("--vm")) {
+                useVm = true;
+            } else if (args[first].equals("--no-jit")) {
+                jit = false;
+            } else if (args[first].equals("--no-cache")) {
+                cache = false;
+            } else if (args[first].equals("--stack-size") && first + 1 < args.length) {
+                stackSize = parseSize(args[++first]);
+                if (stackSize <= 0) usage();
+            } else {
+                usage();
+            }
+            ++first;
+        }
+
+        final LoxEngine engine = new LoxEngine(useVm, jit, cache);
+        if (stackSize == 0) {
+            start(engine, args, first);
+            return;
+        }
+
+        // Deeply recursive scripts get a thread with as much stack as
+        // they asked for, instead of the main thread's.
+        final int scriptIndex = first;
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start(engine, args, scriptIndex);
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            }
+        }, "jlox", stackSize);
+
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: jlox [--vm] [--no-jit] [--no-cache] [--stack-size size] [script] [arguments...]");
+        System.exit(ErrorCode.INVALID_ARGUMENTS);
+    }
+
+    // Sizes are in bytes, or in kilobytes, megabytes or gigabytes with
+    // a k, m or g suffix, like the JVM's -Xss. Returns 0 if it's invalid.
+    private static long parseSize(String size) {
+        long unit = 1;
+        String digits = size.toLowerCase();
+        if (digits.endsWith("k")) {
+            unit = 1024;
+        } else if (digits.endsWith("m")) {
+            unit = 1024 * 1024;
+        } else if (digits.endsWith("g")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit != 1) digits = digits.substring(0, digits.length() - 1);
+
+        try {
+            return Long.parseLong(digits) * unit;
+        } catch (NumberFormatException exception) {
+            return 0;
+        }
+    }
+
+    private static void start(LoxEngine engine, String[] args, int first) throws IOException {
+        LoxContext context = engine.createContext();
+        if (args.length > first) {
             // Collect extra arguments
-            for (int i = 1; i < args.length; ++i) {
-                argv.add(args[i]);
+            for (int i = first + 1; i < args.length; ++i) {
+                context.addArgument(args[i]);
             }
 
             // We can run the provided file...
             try {
-                runFile(args[0]);
+                runFile(context, args[first]);
             } catch (IOException exception) {
-                System.err.println("Error: Unable to read file '" + args[0] + "'.");
+                System.err.println("Error: Unable to read file '" + args[first] + "'.");
                 System.exit(ErrorCode.FILE_ERROR);
             }
         } else {
             // Or run a REPL
-            runPrompt();
+            runPrompt(context);
         }
     }
 
-    public static void runFile(String path) throws IOException {
-        // Pass the contents of the file to run()
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+    private static void runFile(LoxContext context, String path) throws IOException {
+        LoxContext.Result result = context.runFile(path);
 
         // Don't try and execute code that has a known error
-        if (hadError) System.exit(ErrorCode.STATIC_ERROR);
-        if (hadRuntimeError) System.exit(ErrorCode.RUNTIME_ERROR);
+        if (result == LoxContext.Result.COMPILE_ERROR) System.exit(ErrorCode.STATIC_ERROR);
+        if (result == LoxContext.Result.RUNTIME_ERROR) System.exit(ErrorCode.RUNTIME_ERROR);
     }
 
-    public static void runPrompt() throws IOException {
-        InputStreamReader input = new InputStreamReader(System.in);
-        BufferedReader reader = new BufferedReader(input);
-
-        // Infinitely read lines from the console and run() them
-        while (true) {
-            System.out.print("lox > ");
-            run(reader.readLine() + "\n");
-
-            // Don't kill the whole session if there was an error
-            hadError = false;
+    // Files at least this big are mapped rather than read onto the heap
+    // before being decoded.
+    private static final long MAP_THRESHOLD = 1 << 20;
+
+    // Reads a whole file as text in the platform's charset. Scripts,
+    // modules and readFile() all go through here.
+    static String readFile(String path) throws IOException {
+        Path file;
+        try {
+            file = Paths.get(path);
+        } catch (InvalidPathException exception) {
+            throw new IOException(exception);
         }
-    }
-
-    public static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
-
-        // Stop if there was a syntax error.
-        if (hadError) return;
-
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(statements);
-
-        // Stop if there was a resolution error.
-        if (hadError) return;
-
-        interpreter.interpret(statements);
-    }
 
-    private static void report(int line, String where, String message) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
-    }
+        Charset charset = Charset.defaultCharset();
+        if (Files.size(file) < MAP_THRESHOLD) {
+            return new String(Files.readAllBytes(file), charset);
+        }
 
-    static void error(int line, String message) {
-        report(line, "", message);
+        try (FileChannel channel = FileChannel.open(file)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("'" + path + "' is too large to read.");
+            }
+            return charset.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)).toString();
+        }
     }
 
-    static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-                "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+    // Reads a file as readFile() returns it, with every line ending in
+    // a newline whichever line endings the file used.
+    static String readLines(String path) throws IOException {
+        String contents = readFile(path);
+        if (contents.indexOf('\r') != -1) {
+            contents = contents.replace("\r\n", "\n").replace('\r', '\n');
+        }
+        if (!contents.isEmpty() && !contents.endsWith("\n")) {
+            contents += "\n";
+        }
+        return contents;
     }
 
-    static void error(Token token, String message) {
-        if (token.type == TokenType.EOF) {
-            report(token.line, " at end", message);
-        } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+    private static void runPrompt(LoxContext context) throws IOException {
+        // Infinitely read lines from the console and run() them. Errors
+        // are forgotten after each line, so they don't kill the whole
+        // session.
+        while (true) {
+            System.out.print("lox > ");
+            context.run(context.in.readLine() + "\n");
         }
     }
 }
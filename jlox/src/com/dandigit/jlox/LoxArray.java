@@ -0,0 +1,413 @@
+package com.dandigit.jlox;
+
+import java.util.Arrays;
+
+// A Lox array. The elements are kept by a storage strategy picked for
+// what the array has held so far: nothing at all, only numbers, which
+// are kept unboxed in a double[], or anything else, in an Object[].
+// Storing a value the current strategy can't hold moves the elements
+// over to a more general one, and an array never goes back.
+//
+// An array is a window onto its storage, so shrinking one or taking a
+// slice of it makes a view that shares the storage instead of copying
+// it. Storage that has been shared is copied before an element in it
+// is assigned. Appending writes in place as long as nothing past the
+// end of the array has been stored yet.
+//
+// Appending to an array that was cut down from a longer one would
+// overwrite elements the longer one can still see. Instead, the
+// storage is split: the longer arrays keep copies of just the elements
+// past the shorter one's end, and the shorter one carries on appending
+// into the elements it shares with them. Where that would overwrite
+// elements older storage still reads, the shorter one appends into a
+// tail of its own instead. Either way, popping then pushing only copies
+// what was popped. The exception is pushing onto an array that was cut
+// down part way into such a tail, which copies the whole array, as
+// appending to any other shared array does.
+//
+// Callers check indexes against size() before using them.
+class LoxArray {
+    private Storage storage;
+    private int start;
+    private int size;
+
+    LoxArray() {
+        this.storage = Storage.EMPTY;
+    }
+
+    private LoxArray(Storage storage, int start, int size) {
+        this.storage = storage;
+        this.start = start;
+        this.size = size;
+    }
+
+    // An array of numbers that takes ownership of them instead of
+    // copying them.
+    static LoxArray of(double[] numbers) {
+        Numbers storage = new Numbers(numbers);
+        storage.length = numbers.length;
+        return new LoxArray(storage, 0, numbers.length);
+    }
+
+    int size() {
+        return size;
+    }
+
+    Object get(int index) {
+        return storage.get(start + index);
+    }
+
+    // Throws NotANumber with the element if it isn't a number.
+    double getNumber(int index) {
+        return storage.getNumber(start + index);
+    }
+
+    void set(int index, Object value) {
+        if (storage.shared || !storage.accepts(value)) detach(value, size);
+        storage.put(start + index, value);
+    }
+
+    void add(Object value) {
+        int end = start + size;
+        if (end != storage.length && storage.accepts(value)) {
+            Storage split = storage.split(end);
+            if (split != null) storage = split;
+        }
+
+        if (end != storage.length || !storage.accepts(value)) {
+            detach(value, grow(size));
+            end = size;
+        }
+
+        storage.reserve(end + 1);
+        storage.put(end, value);
+        storage.length = end + 1;
+        size++;
+    }
+
+    // Stores the first count numbers as the first elements of the
+    // array, growing it if it's shorter. Used by natives that produce
+    // numbers in bulk, so they don't have to box each one.
+    void setNumbers(double[] numbers, int count) {
+        int newSize = Math.max(size, count);
+        if (!(storage instanceof Numbers) || storage.shared) {
+            Storage copy = storage instanceof Objects ? new Objects(newSize) : new Numbers(newSize);
+            storage.copyTo(copy, start, size);
+            storage = copy;
+            start = 0;
+        }
+
+        storage.reserve(start + newSize);
+        if (storage instanceof Numbers) {
+            System.arraycopy(numbers, 0, ((Numbers)storage).values, start, count);
+        } else {
+            for (int i = 0; i < count; ++i) storage.put(start + i, numbers[i]);
+        }
+        size = newSize;
+        storage.length = start + size;
+    }
+
+    // The elements as a double[], starting at numberOffset(), for
+    // natives that work through a whole array at once. A numeric array
+    // hands back its own storage, which mustn't be written to; anything
+    // else is copied, throwing NotANumber if an element isn't a number.
+    double[] numbers() {
+        if (hasNumbers()) return ((Numbers)storage).values;
+
+        double[] numbers = new double[size];
+        for (int i = 0; i < size; ++i) numbers[i] = getNumber(i);
+        return numbers;
+    }
+
+    int numberOffset() {
+        return hasNumbers() ? start : 0;
+    }
+
+    // Whether every element is in the storage's double[].
+    private boolean hasNumbers() {
+        return storage instanceof Numbers && start + size <= storage.tailStart;
+    }
+
+    // The elements from 'from' up to but not including 'to', sharing
+    // this array's storage.
+    LoxArray slice(int from, int to) {
+        if (from == to) return new LoxArray();
+
+        storage.shared = true;
+        return new LoxArray(storage, start + from, to - from);
+    }
+
+    boolean isNumeric() {
+        return storage instanceof Numbers;
+    }
+
+    // Moves the elements to storage of their own that can also hold
+    // the value about to be stored.
+    private void detach(Object value, int capacity) {
+        Storage copy;
+        if (value instanceof Double && !(storage instanceof Objects)) {
+            copy = new Numbers(capacity);
+        } else {
+            copy = new Objects(capacity);
+        }
+
+        storage.copyTo(copy, start, size);
+        copy.length = size;
+        storage = copy;
+        start = 0;
+    }
+
+    // Arrays are compared element by element, like the lists they
+    // used to be.
+    @Override
+    public boolean equals(Object object) {
+        if (object == this) return true;
+        if (!(object instanceof LoxArray)) return false;
+
+        LoxArray other = (LoxArray)object;
+        if (other.size != size) return false;
+        for (int i = 0; i < size; ++i) {
+            Object a = Rope.flatten(get(i));
+            Object b = Rope.flatten(other.get(i));
+            if (a == null ? b != null : !a.equals(b)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < size; ++i) {
+            Object value = Rope.flatten(get(i));
+            hash = 31 * hash + (value == null ? 0 : value.hashCode());
+        }
+        return hash;
+    }
+
+    private static int grow(int capacity) {
+        return Math.max(8, capacity + (capacity >> 1));
+    }
+
+    private abstract static class Storage {
+        // How many elements have been stored, by any of the arrays
+        // sharing it.
+        int length;
+
+        // Set once more than one array has used it.
+        boolean shared;
+
+        // Elements from tailStart on have been split off into a
+        // separate array of their own.
+        int tailStart = Integer.MAX_VALUE;
+
+        // Older storage still reads the elements before floor from the
+        // same array as this one, so they mustn't be overwritten.
+        int floor = 0;
+
+        abstract boolean accepts(Object value);
+        abstract Object get(int index);
+
+        double getNumber(int index) {
+            Object value = get(index);
+            if (value instanceof Double) return (double)value;
+            throw new NotANumber(value);
+        }
+
+        abstract void put(int index, Object value);
+
+        // Makes room for at least capacity elements.
+        abstract void reserve(int capacity);
+
+        void copyTo(Storage target, int from, int count) {
+            for (int i = 0; i < count; ++i) {
+                target.put(i, get(from + i));
+            }
+        }
+
+        // Storage for an array ending at end to append to, sharing the
+        // elements before end. Either this storage moves the elements
+        // from end on into a tail of its own, or, if something else
+        // still reads them, the new storage appends into a tail instead.
+        // Returns null if the elements before end aren't all in one
+        // place.
+        Storage split(int end) {
+            return null;
+        }
+
+        static final Storage EMPTY = new Empty();
+    }
+
+    // Shared by every array that has never held anything. It accepts
+    // nothing, so the first value stored picks a real strategy.
+    private static class Empty extends Storage {
+        @Override
+        boolean accepts(Object value) {
+            return false;
+        }
+
+        @Override
+        Object get(int index) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length 0");
+        }
+
+        @Override
+        void put(int index, Object value) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length 0");
+        }
+
+        @Override
+        void reserve(int capacity) {
+        }
+    }
+
+    private static class Numbers extends Storage {
+        private double[] values;
+        private double[] tail;
+
+        Numbers(int capacity) {
+            this.values = new double[capacity];
+        }
+
+        Numbers(double[] values) {
+            this.values = values;
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return value instanceof Double;
+        }
+
+        @Override
+        Object get(int index) {
+            return getNumber(index);
+        }
+
+        @Override
+        double getNumber(int index) {
+            if (index >= tailStart) return tail[index - tailStart];
+            return values[index];
+        }
+
+        @Override
+        void put(int index, Object value) {
+            if (index >= tailStart) {
+                tail[index - tailStart] = (double)value;
+            } else {
+                values[index] = (double)value;
+            }
+        }
+
+        @Override
+        void reserve(int capacity) {
+            if (capacity > tailStart) {
+                if (capacity - tailStart > tail.length) {
+                    tail = Arrays.copyOf(tail, Math.max(capacity - tailStart, grow(tail.length)));
+                }
+            } else if (capacity > values.length) {
+                values = Arrays.copyOf(values, Math.max(capacity, grow(values.length)));
+            }
+        }
+
+        @Override
+        void copyTo(Storage target, int from, int count) {
+            if (target instanceof Numbers && from + count <= tailStart) {
+                System.arraycopy(values, from, ((Numbers)target).values, 0, count);
+            } else {
+                super.copyTo(target, from, count);
+            }
+        }
+
+        @Override
+        Storage split(int end) {
+            Numbers split = new Numbers(values);
+            split.length = end;
+            split.shared = true;
+
+            if (tail == null && end >= floor) {
+                tail = Arrays.copyOfRange(values, end, Math.max(length, end + 1));
+                tailStart = end;
+                shared = true;
+                split.floor = end;
+            } else if (end <= tailStart) {
+                split.tail = new double[0];
+                split.tailStart = end;
+            } else {
+                return null;
+            }
+            return split;
+        }
+    }
+
+    private static class Objects extends Storage {
+        private Object[] values;
+        private Object[] tail;
+
+        Objects(int capacity) {
+            this.values = new Object[capacity];
+        }
+
+        Objects(Object[] values) {
+            this.values = values;
+        }
+
+        @Override
+        boolean accepts(Object value) {
+            return true;
+        }
+
+        @Override
+        Object get(int index) {
+            if (index >= tailStart) return tail[index - tailStart];
+            return values[index];
+        }
+
+        @Override
+        void put(int index, Object value) {
+            if (index >= tailStart) {
+                tail[index - tailStart] = value;
+            } else {
+                values[index] = value;
+            }
+        }
+
+        @Override
+        void reserve(int capacity) {
+            if (capacity > tailStart) {
+                if (capacity - tailStart > tail.length) {
+                    tail = Arrays.copyOf(tail, Math.max(capacity - tailStart, grow(tail.length)));
+                }
+            } else if (capacity > values.length) {
+                values = Arrays.copyOf(values, Math.max(capacity, grow(values.length)));
+            }
+        }
+
+        @Override
+        void copyTo(Storage target, int from, int count) {
+            if (target instanceof Objects && from + count <= tailStart) {
+                System.arraycopy(values, from, ((Objects)target).values, 0, count);
+            } else {
+                super.copyTo(target, from, count);
+            }
+        }
+
+        @Override
+        Storage split(int end) {
+            Objects split = new Objects(values);
+            split.length = end;
+            split.shared = true;
+
+            if (tail == null && end >= floor) {
+                tail = Arrays.copyOfRange(values, end, Math.max(length, end + 1));
+                tailStart = end;
+                shared = true;
+                split.floor = end;
+            } else if (end <= tailStart) {
+                split.tail = new Object[0];
+                split.tailStart = end;
+            } else {
+                return null;
+            }
+            return split;
+        }
+    }
+}
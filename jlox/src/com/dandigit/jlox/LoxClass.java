@@ -17,17 +17,25 @@ class LoxClass extends LoxInstance implements LoxCallable {
     }
 
     LoxFunction findMethod(LoxInstance instance, String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name).bind(instance);
-        }
+        LoxFunction method = lookUpMethod(name);
+        if (method == null) return null;
+        return method.bind(instance);
+    }
 
-        if (superclass != null) {
-            return superclass.findMethod(instance, name);
+    // Finds a method without binding it to an instance.
+    LoxFunction lookUpMethod(String name) {
+        for (LoxClass klass = this; klass != null; klass = klass.superclass) {
+            LoxFunction method = klass.methods.get(name);
+            if (method != null) return method;
         }
 
         return null;
     }
 
+    LoxFunction findInitializer() {
+        return methods.get("init");
+    }
+
     @Override
     public String toString() {
         return name;
@@ -38,7 +46,7 @@ class LoxClass extends LoxInstance implements LoxCallable {
         LoxInstance instance = new LoxInstance(this);
         LoxFunction initializer = methods.get("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
         }
 
         return instance;
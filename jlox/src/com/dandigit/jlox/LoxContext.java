@@ -0,0 +1,141 @@
+package com.dandigit.jlox;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.List;
+
+// Somewhere for scripts to run: its own interpreter with its own
+// globals and imported modules, its own record of errors, and its own
+// output. Scripts run in one context can't see anything done in
+// another, so contexts can run on different threads at the same time.
+// A single context must only be used by one thread at a time.
+//
+// The scripts a context runs share its globals, so a script can use
+// what an earlier one defined, as they do at the REPL.
+public class LoxContext {
+    public enum Result {
+        SUCCESS,
+        COMPILE_ERROR,
+        RUNTIME_ERROR
+    }
+
+    final LoxEngine engine;
+    final PrintStream out;
+    final PrintStream err;
+    final BufferedReader in;
+    final LoxArray argv = new LoxArray();
+    final OpenFiles files = new OpenFiles();
+
+    private final Interpreter interpreter;
+    private VM vm;
+
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    LoxContext(LoxEngine engine, PrintStream out, PrintStream err, InputStream in) {
+        this.engine = engine;
+        this.out = out;
+        this.err = err;
+        this.in = new BufferedReader(new InputStreamReader(in));
+        this.interpreter = new Interpreter(this, engine.jit);
+    }
+
+    // Arguments are what scripts see in argv.
+    public void addArgument(String argument) {
+        argv.add(argument);
+    }
+
+    public Result run(String source) {
+        return run(source, false);
+    }
+
+    // Scripts read from a file are cached, if the engine caches them.
+    public Result runFile(String path) throws IOException {
+        return run(Lox.readFile(path), true);
+    }
+
+    private Result run(String source, boolean cache) {
+        hadError = false;
+        hadRuntimeError = false;
+
+        try {
+            execute(source, cache);
+        } finally {
+            files.closeAll();
+        }
+
+        if (hadError) return Result.COMPILE_ERROR;
+        if (hadRuntimeError) return Result.RUNTIME_ERROR;
+        return Result.SUCCESS;
+    }
+
+    // Runs a script without forgetting earlier errors, as imports do
+    // part way through the script importing them.
+    void execute(String source, boolean cache) {
+        cache = cache && engine.cache;
+
+        List<Stmt> statements = cache ? AstCache.load(source) : null;
+        if (statements == null) {
+            statements = compile(source);
+
+            // Stop if there was an error.
+            if (statements == null) return;
+
+            if (cache) AstCache.store(source, statements);
+        }
+
+        if (engine.useVm) {
+            if (vm == null) vm = new VM(interpreter);
+            vm.interpret(statements);
+        } else {
+            interpreter.interpret(statements);
+        }
+    }
+
+    // Returns null if there was an error.
+    private List<Stmt> compile(String source) {
+        Scanner scanner = new Scanner(this, source);
+        List<Token> tokens = scanner.scanTokens();
+        Parser parser = new Parser(this, tokens);
+        List<Stmt> statements = parser.parse();
+
+        // Stop if there was a syntax error.
+        if (hadError) return null;
+
+        Resolver resolver = new Resolver(this);
+        resolver.resolve(statements);
+
+        // Stop if there was a resolution error.
+        if (hadError) return null;
+
+        new Optimizer(interpreter).optimize(statements);
+        return statements;
+    }
+
+    private void report(int line, String where, String message) {
+        err.println(
+                "[line " + line + "] Error" + where + ": " + message);
+        hadError = true;
+    }
+
+    void error(int line, String message) {
+        report(line, "", message);
+    }
+
+    void runtimeError(RuntimeError error) {
+        err.println(error.getMessage() +
+                "\n[line " + error.token.line + "]");
+        hadRuntimeError = true;
+    }
+
+    void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.dandigit.jlox;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+
+// The entry point for programs that run Lox scripts themselves. An
+// engine only holds settings, which every context it creates shares.
+// Everything a script can change lives in its LoxContext, so one
+// engine can create as many contexts as are needed, and use them from
+// as many threads.
+public class LoxEngine {
+    final boolean useVm;
+    final boolean jit;
+    final boolean cache;
+
+    // Runs scripts in the tree-walking interpreter, compiling hot code
+    // and caching parsed scripts on disk.
+    public LoxEngine() {
+        this(false, true, true);
+    }
+
+    // useVm runs scripts in the bytecode VM instead, jit compiles hot
+    // functions and loops in the interpreter to JVM code, and cache
+    // keeps the syntax trees of scripts and modules on disk.
+    public LoxEngine(boolean useVm, boolean jit, boolean cache) {
+        this.useVm = useVm;
+        this.jit = jit;
+        this.cache = cache;
+    }
+
+    // A context that reads and writes the console.
+    public LoxContext createContext() {
+        return createContext(System.out, System.err, System.in);
+    }
+
+    // A context whose scripts print to out, report errors to err, and
+    // read input() from in.
+    public LoxContext createContext(PrintStream out, PrintStream err, InputStream in) {
+        return new LoxContext(this, out, err, in);
+    }
+}
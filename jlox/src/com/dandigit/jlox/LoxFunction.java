@@ -3,23 +3,33 @@ package com.dandigit.jlox;
 import java.util.List;
 
 class LoxFunction implements LoxCallable {
-    private final String name;
-    private final Expr.Function declaration;
-    private final Environment closure;
-    private final boolean isInitializer;
+    final String name;
+    final Expr.Function declaration;
+    final Environment closure;
+    final boolean isInitializer;
+
+    // The instance a method was bound to, if it has been. A method
+    // that's called straight away is never bound: the receiver is
+    // passed to invoke() instead.
+    final LoxInstance receiver;
 
     LoxFunction(String name, Expr.Function declaration, Environment closure,
                 boolean isInitializer) {
+        this(name, declaration, closure, isInitializer, null);
+    }
+
+    private LoxFunction(String name, Expr.Function declaration,
+                        Environment closure, boolean isInitializer,
+                        LoxInstance receiver) {
         this.name = name;
         this.declaration = declaration;
         this.closure = closure;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
     }
 
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(name, declaration, environment, isInitializer);
+        return new LoxFunction(name, declaration, closure, isInitializer, instance);
     }
 
     @Override
@@ -35,23 +45,60 @@ class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        if (declaration.params != null) {
-            for (int i = 0; i < declaration.params.size(); ++i) {
-                environment.define(declaration.params.get(i).lexeme, arguments.get(i));
-            }
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    Object invoke(Interpreter interpreter, LoxInstance receiver,
+                  List<Object> arguments) {
+        LoxFunction function = this;
+
+        // A tail call in the body comes back here to be made, rather
+        // than nesting inside the call it replaces.
+        while (true) {
+            Object result = function.execute(interpreter, receiver, arguments);
+            if (result != Interpreter.TAIL_CALL) return result;
+
+            function = interpreter.tailFunction;
+            receiver = interpreter.tailReceiver;
+            arguments = interpreter.tailArguments;
+            interpreter.tailFunction = null;
+            interpreter.tailReceiver = null;
+            interpreter.tailArguments = null;
+        }
+    }
+
+    // Runs the body once. Returns TAIL_CALL if it ended in one.
+    private Object execute(Interpreter interpreter, LoxInstance receiver,
+                           List<Object> arguments) {
+        if (declaration.calls < Jit.FUNCTION_THRESHOLD) {
+            declaration.calls++;
+        } else if (interpreter.jit && !declaration.isMethod) {
+            Object result = Jit.callFunction(this, interpreter, arguments);
+            if (result != null) return result;
         }
 
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
+        int params = declaration.params == null ? 0 : declaration.params.size();
+        Environment environment = new Environment(closure,
+                declaration.isMethod ? params + 1 : params);
 
-            return returnValue.value;
+        // A method's receiver takes the first slot, ahead of the
+        // parameters.
+        if (declaration.isMethod) {
+            environment.define("this", receiver);
         }
 
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
+        for (int i = 0; i < params; ++i) {
+            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+        }
+
+        Object completion = interpreter.executeBlock(declaration.body, environment);
+        if (completion == Interpreter.TAIL_CALL) return completion;
+
+        Object value = null;
+        if (completion == Interpreter.RETURN) value = interpreter.takeReturnValue();
+
+        if (isInitializer) return receiver;
+        return value;
     }
 
     public boolean isGetter() {
@@ -1,20 +1,19 @@
 package com.dandigit.jlox;
 
-import java.util.HashMap;
-import java.util.Map;
-
 class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    final LoxClass klass;
+
+    // Fields live in values, at the index their name has in shape.
+    Shape shape = Shape.EMPTY;
+    private Object[] values = null;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
-        }
+        int index = shape.indexOf(name.lexeme);
+        if (index != -1) return values[index];
 
         LoxFunction method = klass.findMethod(this, name.lexeme);
         if (method != null) return method;
@@ -24,7 +23,31 @@ class LoxInstance {
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int index = shape.indexOf(name.lexeme);
+        if (index == -1) {
+            setField(shape.withField(name.lexeme), shape.size, value);
+        } else {
+            values[index] = value;
+        }
+    }
+
+    Object getField(int index) {
+        return values[index];
+    }
+
+    // Stores a field that the caller has already found in (or added
+    // to) this instance's shape.
+    void setField(Shape shape, int index, Object value) {
+        if (values == null) {
+            values = new Object[Math.max(4, shape.size)];
+        } else if (index >= values.length) {
+            Object[] grown = new Object[Math.max(values.length * 2, shape.size)];
+            System.arraycopy(values, 0, grown, 0, values.length);
+            values = grown;
+        }
+
+        values[index] = value;
+        this.shape = shape;
     }
 
     @Override
@@ -0,0 +1,326 @@
+package com.dandigit.jlox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The std:Math module. Besides the usual functions of one number, it
+// has kernels that work through a whole array of numbers in Java, so a
+// single call replaces a loop that would otherwise run in the
+// interpreter.
+//
+// The kernels read a numeric array's storage directly. The loops are
+// kept simple enough for the JIT to unroll and vectorize, and sums are
+// split across several accumulators so each addition doesn't have to
+// wait for the one before it. Kernels that produce an array always
+// make a new one.
+//
+// Every function returns nil if it's given something other than
+// numbers, or arrays of different lengths.
+class MathModule extends NativeInstance {
+    private MathModule(Map<String, LoxCallable> methods) {
+        super("Math", methods);
+    }
+
+    static MathModule create() {
+        Map<String, LoxCallable> methods = new HashMap<>();
+
+        methods.put("sqrt", new Function() {
+            @Override
+            double apply(double x) {
+                return Math.sqrt(x);
+            }
+        });
+
+        methods.put("exp", new Function() {
+            @Override
+            double apply(double x) {
+                return Math.exp(x);
+            }
+        });
+
+        methods.put("log", new Function() {
+            @Override
+            double apply(double x) {
+                return Math.log(x);
+            }
+        });
+
+        methods.put("log10", new Function() {
+            @Override
+            double apply(double x) {
+                return Math.log10(x);
+            }
+        });
+
+        methods.put("sin", new Function() {
+            @Override
+            double apply(double x) {
+                return Math.sin(x);
+            }
+        });
+
+        methods.put("cos", new Function() {
+            @Override
+            double apply(double x) {
+                return Math.cos(x);
+            }
+        });
+
+        methods.put("tan", new Function() {
+            @Override
+            double apply(double x) {
+                return Math.tan(x);
+            }
+        });
+
+        methods.put("asin", new Function() {
+            @Override
+            double apply(double x) {
+                return Math.asin(x);
+            }
+        });
+
+        methods.put("acos", new Function() {
+            @Override
+            double apply(double x) {
+                return Math.acos(x);
+            }
+        });
+
+        methods.put("atan", new Function() {
+            @Override
+            double apply(double x) {
+                return Math.atan(x);
+            }
+        });
+
+        methods.put("floor", new Function() {
+            @Override
+            double apply(double x) {
+                return Math.floor(x);
+            }
+        });
+
+        methods.put("ceil", new Function() {
+            @Override
+            double apply(double x) {
+                return Math.ceil(x);
+            }
+        });
+
+        methods.put("abs", new Function() {
+            @Override
+            double apply(double x) {
+                return Math.abs(x);
+            }
+        });
+
+        methods.put("pow", new Method(2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (!(arguments.get(0) instanceof Double) ||
+                        !(arguments.get(1) instanceof Double)) {
+                    return null;
+                }
+                return Math.pow((double)arguments.get(0), (double)arguments.get(1));
+            }
+        });
+
+        methods.put("atan2", new Method(2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (!(arguments.get(0) instanceof Double) ||
+                        !(arguments.get(1) instanceof Double)) {
+                    return null;
+                }
+                return Math.atan2((double)arguments.get(0), (double)arguments.get(1));
+            }
+        });
+
+        methods.put("sum", new Kernel(1) {
+            @Override
+            Object apply(LoxArray array, List<Object> arguments) {
+                return sum(array.numbers(), array.numberOffset(), array.size());
+            }
+        });
+
+        methods.put("dot", new Kernel(2) {
+            @Override
+            Object apply(LoxArray array, List<Object> arguments) {
+                LoxArray other = otherArray(array, arguments.get(1));
+                if (other == null) return null;
+                return dot(array.numbers(), array.numberOffset(),
+                        other.numbers(), other.numberOffset(), array.size());
+            }
+        });
+
+        methods.put("scale", new Kernel(2) {
+            @Override
+            Object apply(LoxArray array, List<Object> arguments) {
+                if (!(arguments.get(1) instanceof Double)) return null;
+                return LoxArray.of(scale(array.numbers(), array.numberOffset(),
+                        array.size(), (double)arguments.get(1)));
+            }
+        });
+
+        // Adds two arrays element by element, or a number to every
+        // element of an array.
+        methods.put("add", new Kernel(2) {
+            @Override
+            Object apply(LoxArray array, List<Object> arguments) {
+                if (arguments.get(1) instanceof Double) {
+                    return LoxArray.of(add(array.numbers(), array.numberOffset(),
+                            array.size(), (double)arguments.get(1)));
+                }
+
+                LoxArray other = otherArray(array, arguments.get(1));
+                if (other == null) return null;
+                return LoxArray.of(add(array.numbers(), array.numberOffset(),
+                        other.numbers(), other.numberOffset(), array.size()));
+            }
+        });
+
+        methods.put("min", new Kernel(1) {
+            @Override
+            Object apply(LoxArray array, List<Object> arguments) {
+                if (array.size() == 0) return null;
+                return min(array.numbers(), array.numberOffset(), array.size());
+            }
+        });
+
+        methods.put("max", new Kernel(1) {
+            @Override
+            Object apply(LoxArray array, List<Object> arguments) {
+                if (array.size() == 0) return null;
+                return max(array.numbers(), array.numberOffset(), array.size());
+            }
+        });
+
+        // Each element of the result is the sum of the elements up to
+        // and including the same index.
+        methods.put("prefixSum", new Kernel(1) {
+            @Override
+            Object apply(LoxArray array, List<Object> arguments) {
+                return LoxArray.of(prefixSum(array.numbers(), array.numberOffset(),
+                        array.size()));
+            }
+        });
+
+        return new MathModule(methods);
+    }
+
+    @Override
+    Object get(String name) {
+        if (name.equals("pi")) return Math.PI;
+        if (name.equals("e")) return Math.E;
+        return super.get(name);
+    }
+
+    // A function of one number.
+    private abstract static class Function extends Method {
+        Function() {
+            super(1);
+        }
+
+        abstract double apply(double x);
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            if (!(arguments.get(0) instanceof Double)) return null;
+            return apply((double)arguments.get(0));
+        }
+    }
+
+    // A function whose first argument is an array of numbers.
+    private abstract static class Kernel extends Method {
+        Kernel(int arity) {
+            super(arity);
+        }
+
+        abstract Object apply(LoxArray array, List<Object> arguments);
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            if (!(arguments.get(0) instanceof LoxArray)) return null;
+            try {
+                return apply((LoxArray)arguments.get(0), arguments);
+            } catch (NotANumber notANumber) {
+                return null;
+            }
+        }
+
+        // The second argument, if it's an array as long as the first.
+        static LoxArray otherArray(LoxArray array, Object other) {
+            if (!(other instanceof LoxArray)) return null;
+            if (((LoxArray)other).size() != array.size()) return null;
+            return (LoxArray)other;
+        }
+    }
+
+    private static double sum(double[] values, int from, int count) {
+        double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+        for (; i + 4 <= count; i += 4) {
+            sum0 += values[from + i];
+            sum1 += values[from + i + 1];
+            sum2 += values[from + i + 2];
+            sum3 += values[from + i + 3];
+        }
+        for (; i < count; ++i) sum0 += values[from + i];
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    private static double dot(double[] a, int aFrom, double[] b, int bFrom, int count) {
+        double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+        int i = 0;
+        for (; i + 4 <= count; i += 4) {
+            sum0 += a[aFrom + i] * b[bFrom + i];
+            sum1 += a[aFrom + i + 1] * b[bFrom + i + 1];
+            sum2 += a[aFrom + i + 2] * b[bFrom + i + 2];
+            sum3 += a[aFrom + i + 3] * b[bFrom + i + 3];
+        }
+        for (; i < count; ++i) sum0 += a[aFrom + i] * b[bFrom + i];
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    private static double[] scale(double[] values, int from, int count, double factor) {
+        double[] result = new double[count];
+        for (int i = 0; i < count; ++i) result[i] = values[from + i] * factor;
+        return result;
+    }
+
+    private static double[] add(double[] values, int from, int count, double addend) {
+        double[] result = new double[count];
+        for (int i = 0; i < count; ++i) result[i] = values[from + i] + addend;
+        return result;
+    }
+
+    private static double[] add(double[] a, int aFrom, double[] b, int bFrom, int count) {
+        double[] result = new double[count];
+        for (int i = 0; i < count; ++i) result[i] = a[aFrom + i] + b[bFrom + i];
+        return result;
+    }
+
+    private static double min(double[] values, int from, int count) {
+        double min = values[from];
+        for (int i = 1; i < count; ++i) min = Math.min(min, values[from + i]);
+        return min;
+    }
+
+    private static double max(double[] values, int from, int count) {
+        double max = values[from];
+        for (int i = 1; i < count; ++i) max = Math.max(max, values[from + i]);
+        return max;
+    }
+
+    private static double[] prefixSum(double[] values, int from, int count) {
+        double[] result = new double[count];
+        double sum = 0;
+        for (int i = 0; i < count; ++i) {
+            sum += values[from + i];
+            result[i] = sum;
+        }
+        return result;
+    }
+}
@@ -12,6 +12,12 @@ class NativeInstance implements LoxCallable {
         this.methods = methods;
     }
 
+    // The value of a property. Native instances only have methods,
+    // unless a subclass says otherwise.
+    Object get(String name) {
+        return findMethod(name);
+    }
+
     LoxCallable findMethod(String name) {
         if (methods.containsKey(name)) {
             return methods.get(name);
@@ -41,4 +47,23 @@ class NativeInstance implements LoxCallable {
         if (initializer == null) return 0;
         return initializer.arity();
     }
+
+    // A base for the methods of native instances.
+    abstract static class Method implements LoxCallable {
+        private final int arity;
+
+        Method(int arity) {
+            this.arity = arity;
+        }
+
+        @Override
+        public int arity() {
+            return arity;
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    }
 }
\ No newline at end of file
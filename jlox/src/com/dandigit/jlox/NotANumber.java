@@ -0,0 +1,12 @@
+package com.dandigit.jlox;
+
+// Thrown by Interpreter.evaluateNumber() when an expression that was
+// expected to produce a number doesn't, carrying the value it produced.
+class NotANumber extends RuntimeException {
+    final Object value;
+
+    NotANumber(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+}
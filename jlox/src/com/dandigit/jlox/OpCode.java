@@ -0,0 +1,61 @@
+package com.dandigit.jlox;
+
+// Instructions understood by the VM. Operands follow the opcode in
+// the chunk: constant indices and jump offsets are two bytes wide,
+// variable depths, slots and argument counts are one byte wide.
+final class OpCode {
+    static final byte OP_CONSTANT = 0;
+    static final byte OP_NIL = 1;
+    static final byte OP_TRUE = 2;
+    static final byte OP_FALSE = 3;
+    static final byte OP_POP = 4;
+
+    static final byte OP_GET_LOCAL = 5;
+    static final byte OP_GET_LOCAL_RAW = 6;
+    static final byte OP_SET_LOCAL = 7;
+    static final byte OP_GET_GLOBAL = 8;
+    static final byte OP_GET_GLOBAL_RAW = 9;
+    static final byte OP_SET_GLOBAL = 10;
+    static final byte OP_DEFINE = 11;
+
+    static final byte OP_GET_PROPERTY = 12;
+    static final byte OP_SET_PROPERTY = 13;
+    static final byte OP_GET_SUPER = 14;
+    static final byte OP_GET_INDEX = 15;
+    static final byte OP_SET_INDEX = 16;
+
+    static final byte OP_EQUAL = 17;
+    static final byte OP_NOT_EQUAL = 18;
+    static final byte OP_GREATER = 19;
+    static final byte OP_GREATER_EQUAL = 20;
+    static final byte OP_LESS = 21;
+    static final byte OP_LESS_EQUAL = 22;
+    static final byte OP_ADD = 23;
+    static final byte OP_SUBTRACT = 24;
+    static final byte OP_MULTIPLY = 25;
+    static final byte OP_DIVIDE = 26;
+    static final byte OP_MODULO = 27;
+    static final byte OP_NOT = 28;
+    static final byte OP_NEGATE = 29;
+    static final byte OP_CONDITIONAL = 30;
+
+    static final byte OP_JUMP = 31;
+    static final byte OP_JUMP_IF_FALSE = 32;
+    static final byte OP_JUMP_IF_TRUE = 33;
+    static final byte OP_LOOP = 34;
+
+    static final byte OP_BEGIN_SCOPE = 35;
+    static final byte OP_END_SCOPE = 36;
+
+    static final byte OP_CALL = 37;
+    static final byte OP_CLOSURE = 38;
+    static final byte OP_CLASS = 39;
+    static final byte OP_ARRAY = 40;
+    static final byte OP_IMPORT = 41;
+    static final byte OP_RETURN = 42;
+    static final byte OP_INVOKE = 43;
+    static final byte OP_BEGIN_LOOP_SCOPE = 44;
+    static final byte OP_END_LOOP_SCOPE = 45;
+
+    private OpCode() {}
+}
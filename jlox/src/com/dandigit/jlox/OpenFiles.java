@@ -0,0 +1,132 @@
+package com.dandigit.jlox;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The files a context's scripts have open. Appending to a file goes
+// through one BufferedWriter kept open for that path, however many
+// std:File handles append to it, and handles reading a line at a time
+// keep their readers here too.
+//
+// Only about MAX_OPEN files are kept open at once. Past that, the one
+// used least recently is closed, and opened again if it's needed. What's
+// been appended to a file is flushed before a script reads or writes
+// that file any other way, and everything is closed when the script
+// finishes running.
+class OpenFiles {
+    private static final int MAX_OPEN = 32;
+
+    private final Map<String, BufferedWriter> writers =
+            new LinkedHashMap<String, BufferedWriter>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, BufferedWriter> eldest) {
+                    if (size() == 1 || size() + readers.size() <= MAX_OPEN) return false;
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+
+    private final Map<FileHandle, Boolean> readers =
+            new LinkedHashMap<FileHandle, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<FileHandle, Boolean> eldest) {
+                    if (size() == 1 || size() + writers.size() <= MAX_OPEN) return false;
+                    eldest.getKey().closeReader();
+                    return true;
+                }
+            };
+
+    void append(String path, String data) throws IOException {
+        String key = keyFor(path);
+        BufferedWriter writer = writers.get(key);
+        if (writer == null) {
+            writer = new BufferedWriter(new FileWriter(path, true));
+            writers.put(key, writer);
+        }
+
+        try {
+            writer.write(data);
+        } catch (IOException exception) {
+            writers.remove(key);
+            closeQuietly(writer);
+            throw exception;
+        }
+    }
+
+    // Replaces what's in the file straight away.
+    void write(String path, String data) throws IOException {
+        flush(path);
+        try (Writer writer = new FileWriter(path)) {
+            writer.write(data);
+        }
+    }
+
+    // Writes out what's been appended to the file. A writer that can't
+    // be flushed is closed, so its data is lost either way.
+    void flush(String path) {
+        String key = keyFor(path);
+        BufferedWriter writer = writers.get(key);
+        if (writer == null) return;
+
+        try {
+            writer.flush();
+        } catch (IOException exception) {
+            writers.remove(key);
+            closeQuietly(writer);
+        }
+    }
+
+    void closeWriter(String path) throws IOException {
+        BufferedWriter writer = writers.remove(keyFor(path));
+        if (writer != null) writer.close();
+    }
+
+    // Called when a handle opens a reader, and each time it reads.
+    void reading(FileHandle handle) {
+        readers.put(handle, true);
+    }
+
+    // Called when a handle closes its reader.
+    void stoppedReading(FileHandle handle) {
+        readers.remove(handle);
+    }
+
+    void closeAll() {
+        for (BufferedWriter writer : writers.values()) {
+            closeQuietly(writer);
+        }
+        writers.clear();
+
+        List<FileHandle> reading = new ArrayList<>(readers.keySet());
+        readers.clear();
+        for (FileHandle handle : reading) {
+            handle.closeReader();
+        }
+    }
+
+    // Writers are shared by path, so "a.txt" and "./a.txt" get the same
+    // one.
+    private static String keyFor(String path) {
+        try {
+            return Paths.get(path).toAbsolutePath().normalize().toString();
+        } catch (InvalidPathException exception) {
+            return path;
+        }
+    }
+
+    private static void closeQuietly(Writer writer) {
+        try {
+            writer.close();
+        } catch (IOException exception) {
+            // Nothing left to report it to.
+        }
+    }
+}
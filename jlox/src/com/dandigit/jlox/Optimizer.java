@@ -0,0 +1,390 @@
+package com.dandigit.jlox;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+// Rewrites resolved syntax trees before they run. Constant operations
+// are folded into literals, local variables that are initialised with
+// a literal and never assigned are replaced by it, groupings around
+// literals are dropped, and branches and loops whose conditions are
+// constant lose the parts that can't run.
+//
+// Folding only happens when the operation succeeds on the literals.
+// Anything that would fail, like dividing by zero, is left in place to
+// raise its error when it runs.
+//
+// Nodes are only rebuilt when one of their children changed, and
+// rebuilt nodes keep what the resolver stored in them.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    private final Interpreter interpreter;
+
+    // The values of the constant locals declared so far, by the var
+    // statement the resolver linked their uses to.
+    private final Map<Stmt.Var, Object> constants = new IdentityHashMap<>();
+
+    Optimizer(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    // Optimizes the statements in place, removing any that do nothing.
+    void optimize(List<Stmt> statements) {
+        ListIterator<Stmt> iterator = statements.listIterator();
+        while (iterator.hasNext()) {
+            Stmt statement = optimize(iterator.next());
+            if (statement == null) {
+                iterator.remove();
+            } else {
+                iterator.set(statement);
+            }
+        }
+    }
+
+    // Returns null if the statement can be removed.
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    // For statements nested in another, which can't just be removed.
+    private Stmt optimizeNested(Stmt stmt) {
+        Stmt optimized = optimize(stmt);
+        if (optimized == null) return new Stmt.Block(new ArrayList<Stmt>());
+        return optimized;
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private List<Expr> optimizeAll(List<Expr> exprs) {
+        List<Expr> optimized = null;
+        for (int i = 0; i < exprs.size(); ++i) {
+            Expr expr = optimize(exprs.get(i));
+            if (expr != exprs.get(i) && optimized == null) {
+                optimized = new ArrayList<>(exprs);
+            }
+            if (optimized != null) optimized.set(i, expr);
+        }
+        return optimized == null ? exprs : optimized;
+    }
+
+    private static boolean isLiteral(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object valueOf(Expr expr) {
+        return ((Expr.Literal)expr).value;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        optimize(stmt.statements);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.methods) {
+            optimize(method.function.body);
+        }
+        for (Stmt.Function method : stmt.classMethods) {
+            optimize(method.function.body);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+
+        // A literal on its own has no effect.
+        if (isLiteral(expression)) return null;
+
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt initializer = null;
+        if (stmt.initializer != null) initializer = optimize(stmt.initializer);
+
+        Expr condition = optimize(stmt.condition);
+
+        // The initializer still runs, in the loop's scope.
+        if (isLiteral(condition) && !interpreter.isTruthy(valueOf(condition))) {
+            if (initializer == null) return null;
+            List<Stmt> statements = new ArrayList<>();
+            statements.add(initializer);
+            return new Stmt.Block(statements);
+        }
+
+        Stmt body = optimizeNested(stmt.body);
+
+        Expr increment = null;
+        if (stmt.increment != null) {
+            increment = optimize(stmt.increment);
+            if (isLiteral(increment)) increment = null;
+        }
+
+        if (initializer == stmt.initializer && condition == stmt.condition &&
+                increment == stmt.increment && body == stmt.body) {
+            return stmt;
+        }
+        return new Stmt.For(initializer, condition, increment, body);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        optimize(stmt.function.body);
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+
+        if (isLiteral(condition)) {
+            if (interpreter.isTruthy(valueOf(condition))) {
+                return optimize(stmt.thenBranch);
+            }
+            if (stmt.elseBranch != null) return optimize(stmt.elseBranch);
+            return null;
+        }
+
+        Stmt thenBranch = optimizeNested(stmt.thenBranch);
+        Stmt elseBranch = null;
+        if (stmt.elseBranch != null) elseBranch = optimize(stmt.elseBranch);
+
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+                elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitImportStmt(Stmt.Import stmt) {
+        Expr module = optimize(stmt.module);
+        if (module == stmt.module) return stmt;
+        return new Stmt.Import(stmt.keyword, module);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+
+        Expr initializer = optimize(stmt.initializer);
+        if (!stmt.assigned && isLiteral(initializer)) {
+            constants.put(stmt, valueOf(initializer));
+        }
+
+        if (initializer == stmt.initializer) return stmt;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+
+        if (isLiteral(condition) && !interpreter.isTruthy(valueOf(condition))) {
+            return null;
+        }
+
+        Stmt body = optimizeNested(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Expr visitAllotExpr(Expr.Allot expr) {
+        // The target has to stay a subscript.
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+        return new Expr.Allot(expr.object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitArrayExpr(Expr.Array expr) {
+        if (expr.values == null) return expr;
+
+        List<Expr> values = optimizeAll(expr.values);
+        if (values == expr.values) return expr;
+        return new Expr.Array(values);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr left = optimize(expr.left);
+        Expr middle = optimize(expr.middle);
+        Expr right = optimize(expr.right);
+
+        // All three operands are evaluated, so the one that isn't
+        // picked can only go if evaluating it does nothing.
+        if (isLiteral(left)) {
+            boolean truthy = interpreter.isTruthy(valueOf(left));
+            Expr unused = truthy ? right : middle;
+            if (isLiteral(unused)) return truthy ? middle : right;
+        }
+
+        if (left == expr.left && middle == expr.middle && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Ternary(left, expr.leftOper, middle, expr.rightOper, right);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (expr.operator.type == TokenType.COMMA && isLiteral(left)) {
+            return right;
+        }
+
+        if (isLiteral(left) && isLiteral(right)) {
+            try {
+                return new Expr.Literal(
+                        interpreter.binary(expr.operator, valueOf(left), valueOf(right)));
+            } catch (RuntimeError error) {
+                // Leave it to fail when it runs.
+            }
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = optimizeAll(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitFunctionExpr(Expr.Function expr) {
+        optimize(expr.body);
+        return expr;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    // A grouping isn't just parentheses: (r) is the value a reference
+    // variable refers to, where r on its own is the reference. So only
+    // literals come out of them.
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+        if (isLiteral(expression)) return expression;
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        // The result is whichever operand decided it, as it is when
+        // it runs.
+        if (isLiteral(left)) {
+            boolean truthy = interpreter.isTruthy(valueOf(left));
+            boolean isOr = expr.operator.type == TokenType.OR;
+            return truthy == isOr ? left : right;
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitReferenceExpr(Expr.Reference expr) {
+        // What a reference points at is looked up by its shape.
+        return expr;
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSubscriptExpr(Expr.Subscript expr) {
+        Expr object = optimize(expr.object);
+        Expr index = optimize(expr.index);
+        if (object == expr.object && index == expr.index) return expr;
+        return new Expr.Subscript(object, expr.name, index);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if (isLiteral(right)) {
+            try {
+                return new Expr.Literal(interpreter.unary(expr.operator, valueOf(right)));
+            } catch (RuntimeError error) {
+                // Leave it to fail when it runs.
+            }
+        }
+
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        // Globals are left alone, as other modules can change them.
+        if (expr.declaration != null && constants.containsKey(expr.declaration)) {
+            return new Expr.Literal(constants.get(expr.declaration));
+        }
+        return expr;
+    }
+}
@@ -1,7 +1,6 @@
 package com.dandigit.jlox;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import static com.dandigit.jlox.TokenType.*;
@@ -9,10 +8,12 @@ import static com.dandigit.jlox.TokenType.*;
 class Parser {
     private static class ParseError extends RuntimeException {}
 
+    private final LoxContext context;
     private final List<Token> tokens;
     private int current = 0;
 
-    Parser(List<Token> tokens) {
+    Parser(LoxContext context, List<Token> tokens) {
+        this.context = context;
         this.tokens = tokens;
     }
 
@@ -158,21 +159,8 @@ class Parser {
 
         Stmt body = statement();
 
-        if (increment != null) {
-            body = new Stmt.Block(Arrays.asList(
-                    body,
-                    new Stmt.Expression(increment)
-            ));
-        }
-
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
-
-        if (initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
-        }
-
-        return body;
+        return new Stmt.For(initializer, condition, increment, body);
     }
 
     private Stmt ifStatement() {
@@ -630,7 +618,7 @@ class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
+        context.error(token, message);
         return new ParseError();
     }
 
@@ -0,0 +1,165 @@
+package com.dandigit.jlox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+// A random number generator, as std:Random and the generators it
+// creates. Numbers come from a SplittableRandom, so every generator is
+// independent of the others and cheap to make, and a generator given a
+// seed always produces the same sequence.
+class RandomInstance extends NativeInstance {
+    private SplittableRandom random;
+
+    // nextGaussian() makes two numbers at a time and keeps one back.
+    private double spareGaussian;
+    private boolean hasSpareGaussian;
+
+    private RandomInstance(String name, SplittableRandom random,
+                           Map<String, LoxCallable> methods) {
+        super(name, methods);
+        this.random = random;
+    }
+
+    // The std:Random module itself, which can also create generators
+    // of its own.
+    static RandomInstance module() {
+        Map<String, LoxCallable> methods = new HashMap<>();
+        RandomInstance module = create("Random", new SplittableRandom(), methods);
+
+        methods.put("create", new Method(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Object seed = arguments.get(0);
+                SplittableRandom random = seed instanceof Double
+                        ? new SplittableRandom(seedFor((double)seed))
+                        : new SplittableRandom();
+                return create("Random", random, new HashMap<String, LoxCallable>());
+            }
+        });
+
+        return module;
+    }
+
+    private static RandomInstance create(String name, SplittableRandom random,
+                                         Map<String, LoxCallable> methods) {
+        final RandomInstance instance = new RandomInstance(name, random, methods);
+
+        methods.put("seed", new Method(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (arguments.get(0) instanceof Double) {
+                    instance.random = new SplittableRandom(seedFor((double)arguments.get(0)));
+                    instance.hasSpareGaussian = false;
+                }
+                return null;
+            }
+        });
+
+        methods.put("nextDouble", new Method(0) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return instance.random.nextDouble();
+            }
+        });
+
+        // From min up to but not including max.
+        methods.put("nextInt", new Method(2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return instance.nextInt(arguments.get(0), arguments.get(1), false);
+            }
+        });
+
+        methods.put("nextGaussian", new Method(0) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return instance.nextGaussian();
+            }
+        });
+
+        // Sets the first n elements of an array to numbers from 0 up to
+        // but not including 1, growing the array if it's shorter.
+        methods.put("fill", new Method(2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                if (!(arguments.get(0) instanceof LoxArray) ||
+                        !(arguments.get(1) instanceof Double)) {
+                    return null;
+                }
+
+                LoxArray array = (LoxArray)arguments.get(0);
+                int count = Math.max(0, ((Double)arguments.get(1)).intValue());
+
+                double[] numbers = new double[count];
+                for (int i = 0; i < count; ++i) {
+                    numbers[i] = instance.random.nextDouble();
+                }
+                array.setNumbers(numbers, count);
+                return array;
+            }
+        });
+
+        // The older interface, kept for existing scripts. random() gives
+        // a whole number from 0 up to 2^31, and inRange() includes max.
+        methods.put("random", new Method(0) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return (double) instance.random.nextInt(Integer.MAX_VALUE);
+            }
+        });
+
+        methods.put("inRange", new Method(2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return instance.nextInt(arguments.get(0), arguments.get(1), true);
+            }
+        });
+
+        return instance;
+    }
+
+    // Fractional seeds are as good as whole ones.
+    private static long seedFor(double seed) {
+        return Double.doubleToLongBits(seed);
+    }
+
+    // Past 2^53 not every whole number is a double, so bounds further
+    // out than that are brought in to it. That also keeps the size of
+    // the range within a long.
+    private static final double MAX_WHOLE = 9007199254740992.0;
+
+    // Returns null unless both bounds are numbers and the range isn't
+    // empty.
+    private Object nextInt(Object minObject, Object maxObject, boolean inclusive) {
+        if (!(minObject instanceof Double) || !(maxObject instanceof Double)) return null;
+
+        double min = Math.max(Math.ceil((double)minObject), -MAX_WHOLE);
+        double max = Math.min(Math.floor((double)maxObject), MAX_WHOLE);
+        if (!inclusive && max == (double)maxObject) max--;
+        if (!(max >= min)) return null;
+
+        return (double)((long)min + random.nextLong((long)max - (long)min + 1));
+    }
+
+    // The polar method, which needs no trigonometry.
+    private double nextGaussian() {
+        if (hasSpareGaussian) {
+            hasSpareGaussian = false;
+            return spareGaussian;
+        }
+
+        double x, y, s;
+        do {
+            x = 2 * random.nextDouble() - 1;
+            y = 2 * random.nextDouble() - 1;
+            s = x * x + y * y;
+        } while (s >= 1 || s == 0);
+
+        double scale = Math.sqrt(-2 * Math.log(s) / s);
+        spareGaussian = y * scale;
+        hasSpareGaussian = true;
+        return x * scale;
+    }
+}
@@ -6,14 +6,17 @@ import java.util.Map;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final LoxContext context;
+    private final Stack<Map<String, Variable>> scopes = new Stack<>();
 
     private FunctionType currentFunction = FunctionType.NONE;
+
+    // The number of scopes outside the current function.
+    private int functionStart = 0;
     private ClassType currentClass = ClassType.NONE;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    Resolver(LoxContext context) {
+        this.context = context;
     }
 
     private enum FunctionType {
@@ -29,6 +32,24 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         SUBCLASS
     }
 
+    // A local variable's position in its scope, and whether its
+    // initializer has finished resolving yet.
+    private static class Variable {
+        final int slot;
+        boolean defined = false;
+
+        // The var statement that declared it, if it came from one.
+        Stmt.Var declaration;
+
+        // Whether a function nested in its scope uses it, so the scope
+        // may outlive the code that created it.
+        boolean captured = false;
+
+        Variable(int slot) {
+            this.slot = slot;
+        }
+    }
+
     void resolve(List<Stmt> statements) {
         for (Stmt statement : statements) {
             resolve(statement);
@@ -39,6 +60,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
         resolve(stmt.statements);
+
+        for (Variable variable : scopes.peek().values()) {
+            if (variable.captured) stmt.captured = true;
+        }
+
         endScope();
         return null;
     }
@@ -59,12 +85,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         if (stmt.superclass != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            defineImplicit("super");
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = (
                     method.name.lexeme.equals("init") ?
@@ -74,14 +97,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
 
         for (Stmt.Function method : stmt.classMethods) {
-            beginScope();
-            scopes.peek().put("this", true);
             resolveFunction(method.function, FunctionType.METHOD);
-            endScope();
         }
 
-        endScope();
-
         if (stmt.superclass != null) endScope();
 
         currentClass = enclosingClass;
@@ -120,12 +138,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Cannot return from top-level code.");
+            context.error(stmt.keyword, "Cannot return from top-level code.");
         }
 
         if (stmt.value != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
-                Lox.error(stmt.keyword,
+                context.error(stmt.keyword,
                         "Cannot return a value from an initializer.");
             }
             resolve(stmt.value);
@@ -141,6 +159,21 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolve(stmt.initializer);
         }
         define(stmt.name);
+
+        if (!scopes.isEmpty()) {
+            scopes.peek().get(stmt.name.lexeme).declaration = stmt;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        if (stmt.increment != null) resolve(stmt.increment);
+        endScope();
         return null;
     }
 
@@ -226,6 +259,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReferenceExpr(Expr.Reference expr) {
         resolve(expr.value);
+
+        // The variable can be changed through the reference.
+        if (expr.value instanceof Expr.Variable) {
+            Stmt.Var declaration = ((Expr.Variable)expr.value).declaration;
+            if (declaration != null) declaration.assigned = true;
+        }
         return null;
     }
 
@@ -246,10 +285,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword,
+            context.error(expr.keyword,
                     "Cannot use 'super' outside of a class.");
         } else if (currentClass != ClassType.SUBCLASS) {
-            Lox.error(expr.keyword,
+            context.error(expr.keyword,
                     "Cannot use 'super' in a class with no superclass.");
         }
 
@@ -260,7 +299,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword,
+            context.error(expr.keyword,
                     "Cannot use 'this' outside of a class.");
             return null;
         }
@@ -286,8 +325,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
         if (!scopes.isEmpty() &&
-        scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name,
+                scopes.peek().containsKey(expr.name.lexeme) &&
+                !scopes.peek().get(expr.name.lexeme).defined) {
+            context.error(expr.name,
                     "Cannot read local variable in its own initializer.");
         }
 
@@ -305,9 +345,19 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private void resolveFunction(Expr.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
+        int enclosingStart = functionStart;
         currentFunction = type;
+        functionStart = scopes.size();
 
         beginScope();
+
+        // A method's receiver is passed in as the first variable in
+        // its scope, rather than bound into an enclosing one.
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            defineImplicit("this");
+            function.isMethod = true;
+        }
+
         if (function.params != null) {
             for (Token param : function.params) {
                 declare(param);
@@ -318,10 +368,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         endScope();
 
         currentFunction = enclosingFunction;
+        functionStart = enclosingStart;
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new HashMap<String, Variable>());
     }
 
     private void endScope() {
@@ -331,26 +382,65 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void declare(Token name) {
         if (scopes.isEmpty()) return;
 
-        Map<String, Boolean> scope = scopes.peek();
+        Map<String, Variable> scope = scopes.peek();
         if (scope.containsKey(name.lexeme)) {
-            Lox.error(name,
+            context.error(name,
                     "A variable with this name is already declared in this scope.");
+            return;
         }
 
-        scope.put(name.lexeme, false);
+        scope.put(name.lexeme, new Variable(scope.size()));
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+
+        Variable variable = scopes.peek().get(name.lexeme);
+        if (variable != null) variable.defined = true;
+    }
+
+    // "this" and "super" are bound by the interpreter rather than
+    // declared in source, but they still take up a slot.
+    private void defineImplicit(String name) {
+        Map<String, Variable> scope = scopes.peek();
+        Variable variable = new Variable(scope.size());
+        variable.defined = true;
+        scope.put(name, variable);
     }
 
     private void resolveLocal(Expr expr, Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
+            Variable variable = scopes.get(i).get(name.lexeme);
+            if (variable != null) {
+                storeResolution(expr, scopes.size() - 1 - i, variable.slot);
+                if (i < functionStart) variable.captured = true;
+
+                // The optimizer needs to know which locals never change.
+                if (expr instanceof Expr.Variable) {
+                    ((Expr.Variable)expr).declaration = variable.declaration;
+                } else if (expr instanceof Expr.Assign &&
+                        variable.declaration != null) {
+                    variable.declaration.assigned = true;
+                }
                 return;
             }
         }
     }
+
+    // The interpreter reads these straight off the node, so looking up
+    // a local never has to go through a side table.
+    private void storeResolution(Expr expr, int depth, int slot) {
+        if (expr instanceof Expr.Variable) {
+            ((Expr.Variable)expr).depth = depth;
+            ((Expr.Variable)expr).slot = slot;
+        } else if (expr instanceof Expr.Assign) {
+            ((Expr.Assign)expr).depth = depth;
+            ((Expr.Assign)expr).slot = slot;
+        } else if (expr instanceof Expr.This) {
+            ((Expr.This)expr).depth = depth;
+            ((Expr.This)expr).slot = slot;
+        } else if (expr instanceof Expr.Super) {
+            ((Expr.Super)expr).depth = depth;
+        }
+    }
 }
\ No newline at end of file
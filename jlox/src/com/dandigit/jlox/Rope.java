@@ -0,0 +1,112 @@
+package com.dandigit.jlox;
+
+// A Lox string built up by concatenation. Joining strings with '+'
+// copies both of them, so building a string a piece at a time takes
+// quadratic time. Once a concatenation gets long enough, it produces a
+// Rope instead, which keeps its characters at the start of a
+// StringBuilder that can be shared with longer ropes.
+//
+// Adding to a rope appends to its builder in place, as long as no
+// longer rope has been made from the same builder already. The rope
+// being added to still sees only its own prefix, so the strings stay
+// immutable. Nothing is flattened into a String until the rope is
+// printed, compared or written out.
+//
+// Ropes and Strings are both Lox strings: use isString() rather than
+// checking for String, and flatten() before handing a value to code
+// that expects one.
+final class Rope implements CharSequence {
+    // Shorter results are left as plain Strings, as copying those is
+    // cheaper than building a rope.
+    private static final int MIN_LENGTH = 64;
+
+    private final StringBuilder builder;
+    private final int length;
+    private String flat;
+
+    private Rope(StringBuilder builder, int length) {
+        this.builder = builder;
+        this.length = length;
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    static Object flatten(Object value) {
+        if (value instanceof Rope) return value.toString();
+        return value;
+    }
+
+    // Both operands must be strings.
+    static Object concat(Object left, Object right) {
+        CharSequence first = (CharSequence)left;
+        CharSequence second = (CharSequence)right;
+
+        if (first instanceof Rope) {
+            Rope rope = (Rope)first;
+            if (rope.length == rope.builder.length()) {
+                // Adding a rope to itself would read from the builder
+                // while it grows.
+                if (second instanceof Rope && ((Rope)second).builder == rope.builder) {
+                    second = second.toString();
+                }
+                append(rope.builder, second);
+                return new Rope(rope.builder, rope.builder.length());
+            }
+        }
+
+        int length = first.length() + second.length();
+        if (length < MIN_LENGTH) return first.toString() + second.toString();
+
+        StringBuilder builder = new StringBuilder(length * 2);
+        append(builder, first);
+        append(builder, second);
+        return new Rope(builder, length);
+    }
+
+    private static void append(StringBuilder builder, CharSequence text) {
+        if (text instanceof Rope) {
+            Rope rope = (Rope)text;
+            builder.append(rope.builder, 0, rope.length);
+        } else {
+            builder.append((String)text);
+        }
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= length) throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        return builder.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) flat = builder.substring(0, length);
+        return flat;
+    }
+
+    // Interpreter.isEqual() flattens ropes before comparing them with
+    // Strings.
+    @Override
+    public boolean equals(Object object) {
+        if (object == this) return true;
+        if (!(object instanceof Rope)) return false;
+        return toString().equals(object.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -46,7 +46,10 @@ class Scanner {
         keywords.put("while",   WHILE);
     }
 
-    Scanner(String source) {
+    private final LoxContext context;
+
+    Scanner(LoxContext context, String source) {
+        this.context = context;
         this.source = source;
     }
 
@@ -130,7 +133,7 @@ class Scanner {
                 } else if (isAlphaOrUnderscore(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, "Unexpected character '" + c + "'.");
+                    context.error(line, "Unexpected character '" + c + "'.");
                 }
                 break;
         }
@@ -151,7 +154,7 @@ class Scanner {
 
         // String without close quote
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated block comment");
+            context.error(line, "Unterminated block comment");
         }
 
         advance();
@@ -198,7 +201,7 @@ class Scanner {
 
         // String without close quote
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            context.error(line, "Unterminated string.");
             return;
         }
 
@@ -278,7 +281,7 @@ class Scanner {
                         break;
 
                     default:
-                        Lox.error(line, "Unrecognised escape sequence '\\" + escaped.charAt(i) + "'.");
+                        context.error(line, "Unrecognised escape sequence '\\" + escaped.charAt(i) + "'.");
                 }
             } else {
                 unescaped.append(escaped.charAt(i));
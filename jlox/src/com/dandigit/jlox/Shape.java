@@ -0,0 +1,47 @@
+package com.dandigit.jlox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The layout of an instance's fields. Instances that had the same
+// fields added in the same order share a Shape, so where a field lives
+// can be cached per shape instead of being looked up by name each
+// time. Shapes form a tree rooted at EMPTY, one step per field added.
+// The tree is shared by every context, so it can grow from more than
+// one thread at once.
+final class Shape {
+    static final Shape EMPTY = new Shape(null, null);
+
+    private final Map<String, Integer> indices;
+    private final Map<String, Shape> transitions = new ConcurrentHashMap<>();
+    final int size;
+
+    private Shape(Shape parent, String field) {
+        if (parent == null) {
+            this.indices = new HashMap<>();
+            this.size = 0;
+        } else {
+            this.indices = new HashMap<>(parent.indices);
+            this.indices.put(field, parent.size);
+            this.size = parent.size + 1;
+        }
+    }
+
+    // Returns -1 if instances of this shape don't have the field.
+    int indexOf(String field) {
+        Integer index = indices.get(field);
+        if (index == null) return -1;
+        return index;
+    }
+
+    Shape withField(String field) {
+        Shape shape = transitions.get(field);
+        if (shape == null) {
+            Shape added = new Shape(this, field);
+            shape = transitions.putIfAbsent(field, added);
+            if (shape == null) shape = added;
+        }
+        return shape;
+    }
+}
@@ -1,42 +1,91 @@
 package com.dandigit.jlox;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+// The modules that can be imported with "std:". They're written in
+// Java, so importing one doesn't have to run any Lox code. Each module
+// is built the first time an interpreter imports it, and defines a
+// single global with the module's name.
 public class StandardLibrary {
-    public static final String File =
-            "class File {\n" +
-                "init(path) {\n" +
-                    "this.path = path\n" +
-                "}\n" +
-                "read() {\n" +
-                    "return readFile(this.path)\n" +
-                "}\n" +
-                "write(data) {\n" +
-                    "return writeFile(this.path, data)\n" +
-                "}\n" +
-                "append(data) {\n" +
-                    "return appendFile(this.path, data)\n" +
-                "}\n" +
-            "}\n";
-
-    public static final String Random =
-            "import \"std:Bitwise\"\n" +
-            "var _stdRandomSeed = clock()\n" +
-            "class Random {\n" +
-                "class seed(number) {\n" +
-                    "_stdRandomSeed = number\n" +
-                "}\n" +
-                "class random() {\n" +
-                    "_stdRandomSeed = (1103515245 * _stdRandomSeed + 12345) % 2147483648\n" +
-                    "return Bitwise.rightShift(_stdRandomSeed, 0)\n" +
-                "}\n" +
-                "class inRange(min, max) {\n" +
-                    "return min + round((max - min + 1) * num(Random.random()) * num(1 / 2147483648))\n" +
-                "}\n" +
-            "}\n";
-
-    public static final NativeInstance Bitwise =
+    private interface Module {
+        Object create();
+    }
+
+    // In the order "std:all" imports them.
+    private static final Map<String, Module> modules = new LinkedHashMap<>();
+
+    static {
+        modules.put("File", new Module() {
+            @Override
+            public Object create() {
+                return File;
+            }
+        });
+
+        modules.put("Random", new Module() {
+            @Override
+            public Object create() {
+                return RandomInstance.module();
+            }
+        });
+
+        modules.put("Bitwise", new Module() {
+            @Override
+            public Object create() {
+                return Bitwise;
+            }
+        });
+
+        modules.put("Math", new Module() {
+            @Override
+            public Object create() {
+                return MathModule.create();
+            }
+        });
+
+        modules.put("Buffer", new Module() {
+            @Override
+            public Object create() {
+                return BufferInstance.module();
+            }
+        });
+    }
+
+    static Set<String> names() {
+        return Collections.unmodifiableSet(modules.keySet());
+    }
+
+    // Returns null if there's no module by that name.
+    static Object load(String name) {
+        Module module = modules.get(name);
+        if (module == null) return null;
+        return module.create();
+    }
+
+    // Calling File opens a file.
+    private static final LoxCallable File = new LoxCallable() {
+        @Override
+        public int arity() {
+            return 1;
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return FileHandle.open(interpreter.stringify(arguments.get(0)));
+        }
+
+        @Override
+        public String toString() {
+            return "<native class>";
+        }
+    };
+
+    private static final NativeInstance Bitwise =
             new NativeInstance("Bitwise", new HashMap<String, LoxCallable>() {{
                 put("leftShift", new LoxCallable() {
                     @Override
@@ -66,9 +115,4 @@ public class StandardLibrary {
                     }
                 });
             }});
-
-    public static void importAll(Environment environment) {
-        Lox.run(File + Random);
-        environment.define("Bitwise", Bitwise);
-    }
 }
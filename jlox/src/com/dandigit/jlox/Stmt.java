@@ -7,6 +7,7 @@ abstract class Stmt {
         R visitBlockStmt(Block stmt);
         R visitClassStmt(Class stmt);
         R visitExpressionStmt(Expression stmt);
+        R visitForStmt(For stmt);
         R visitFunctionStmt(Function stmt);
         R visitIfStmt(If stmt);
         R visitImportStmt(Import stmt);
@@ -23,6 +24,7 @@ abstract class Stmt {
             return visitor.visitBlockStmt(this);
         }
         final List<Stmt> statements;
+        boolean captured;
     }
     static class Class extends Stmt {
         Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> classMethods) {
@@ -50,6 +52,24 @@ abstract class Stmt {
         }
         final Expr expression;
     }
+    static class For extends Stmt {
+        For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+            this.initializer = initializer;
+            this.condition = condition;
+            this.increment = increment;
+            this.body = body;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForStmt(this);
+        }
+        final Stmt initializer;
+        final Expr condition;
+        final Expr increment;
+        final Stmt body;
+        int backEdges;
+        Jit.Unit jit;
+    }
     static class Function extends Stmt {
         Function(Token name, Expr.Function function) {
             this.name = name;
@@ -111,6 +131,7 @@ abstract class Stmt {
         }
         final Token name;
         final Expr initializer;
+        boolean assigned;
     }
     static class While extends Stmt {
         While(Expr condition, Stmt body) {
@@ -123,6 +144,8 @@ abstract class Stmt {
         }
         final Expr condition;
         final Stmt body;
+        int backEdges;
+        Jit.Unit jit;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
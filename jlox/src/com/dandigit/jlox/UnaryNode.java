@@ -0,0 +1,88 @@
+package com.dandigit.jlox;
+
+// The executable half of a unary expression. Like BinaryNode, it
+// specialises itself on first execution, evaluates its own operand,
+// and falls back to GENERIC when the operand stops matching.
+abstract class UnaryNode {
+    abstract Object execute(Interpreter interpreter, Expr.Unary expr);
+
+    boolean isNumeric() {
+        return false;
+    }
+
+    double executeNumber(Interpreter interpreter, Expr.Unary expr) {
+        Object value = execute(interpreter, expr);
+        if (value instanceof Double) return (double)value;
+        throw new NotANumber(value);
+    }
+
+    static final UnaryNode UNINITIALIZED = new Uninitialized();
+    static final UnaryNode GENERIC = new Generic();
+
+    static final UnaryNode NOT = new Not();
+    static final UnaryNode NEGATE_NUMBER = new NegateNumber();
+
+    private static UnaryNode specialize(Token operator, Object right) {
+        switch (operator.type) {
+            case BANG:
+                return NOT;
+            case MINUS:
+                if (right instanceof Double) return NEGATE_NUMBER;
+                break;
+        }
+
+        return GENERIC;
+    }
+
+    private static class Uninitialized extends UnaryNode {
+        @Override
+        Object execute(Interpreter interpreter, Expr.Unary expr) {
+            Object right = interpreter.evaluate(expr.right);
+            expr.node = specialize(expr.operator, right);
+            return interpreter.unary(expr.operator, right);
+        }
+    }
+
+    private static class Generic extends UnaryNode {
+        @Override
+        Object execute(Interpreter interpreter, Expr.Unary expr) {
+            return interpreter.unary(expr.operator, interpreter.evaluate(expr.right));
+        }
+    }
+
+    // '!' accepts any operand, so it never needs to generalise.
+    private static class Not extends UnaryNode {
+        @Override
+        Object execute(Interpreter interpreter, Expr.Unary expr) {
+            return !interpreter.isTruthy(interpreter.evaluate(expr.right));
+        }
+    }
+
+    private static class NegateNumber extends UnaryNode {
+        @Override
+        boolean isNumeric() {
+            return true;
+        }
+
+        @Override
+        Object execute(Interpreter interpreter, Expr.Unary expr) {
+            try {
+                return executeNumber(interpreter, expr);
+            } catch (NotANumber notANumber) {
+                return notANumber.value;
+            }
+        }
+
+        @Override
+        double executeNumber(Interpreter interpreter, Expr.Unary expr) {
+            try {
+                return -interpreter.evaluateNumber(expr.right);
+            } catch (NotANumber notANumber) {
+                expr.node = GENERIC;
+                Object value = interpreter.unary(expr.operator, notANumber.value);
+                if (value instanceof Double) return (double)value;
+                throw new NotANumber(value);
+            }
+        }
+    }
+}
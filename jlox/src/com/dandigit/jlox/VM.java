@@ -0,0 +1,769 @@
+package com.dandigit.jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.dandigit.jlox.OpCode.*;
+
+// A stack-based virtual machine for chunks produced by the Compiler.
+// It shares its globals, natives and runtime objects with the tree
+// interpreter, and falls back to it for the few things that still
+// live in the syntax tree (references and uncompiled functions).
+class VM {
+    private final Interpreter interpreter;
+
+    private Object[] stack = new Object[256];
+    private int stackTop = 0;
+
+    // Numbers on the stack are kept unboxed: their slot in stack holds
+    // Environment.UNBOXED and the value sits in the same slot here.
+    // They're only boxed when they escape into an object or a list.
+    private double[] numbers = new double[256];
+
+    // Frames live on the heap rather than the Java stack, so without a
+    // limit runaway recursion would only stop once memory ran out.
+    private static final int FRAMES_MAX = 100000;
+
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+
+    private static class CallFrame {
+        Chunk chunk;
+        int ip;
+        Environment environment;
+
+        // Index of the callee's slot on the stack. Everything from
+        // here up is discarded when the frame returns.
+        int base;
+
+        // Initializers always return the instance they initialised.
+        Object receiver;
+
+        // The last loop body scope this frame left, for the next
+        // iteration to take back up.
+        Environment loopScope;
+    }
+
+    VM(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    void interpret(List<Stmt> statements) {
+        Chunk chunk = new Compiler(interpreter.context).compile(statements);
+
+        // Stop if there was a compile error.
+        if (interpreter.context.hadError) return;
+
+        // Imports run a nested script while an outer one is still on
+        // the stack, so only unwind back to where we started.
+        int entryFrameCount = frameCount;
+        int entryStackTop = stackTop;
+
+        try {
+            pushFrame(chunk, interpreter.globals, stackTop, null);
+            run(entryFrameCount);
+        } catch (RuntimeError error) {
+            Arrays.fill(stack, entryStackTop, stackTop, null);
+            stackTop = entryStackTop;
+            frameCount = entryFrameCount;
+            interpreter.context.runtimeError(error);
+        }
+    }
+
+    private Object run(int exitFrameCount) {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.chunk.code;
+
+        while (true) {
+            int start = frame.ip;
+            byte instruction = code[frame.ip++];
+
+            switch (instruction) {
+                case OP_CONSTANT:
+                    push(readConstant(frame));
+                    break;
+                case OP_NIL: push(null); break;
+                case OP_TRUE: push(true); break;
+                case OP_FALSE: push(false); break;
+                case OP_POP: stack[--stackTop] = null; break;
+
+                case OP_GET_LOCAL: {
+                    int depth = readByte(frame);
+                    int slot = readByte(frame);
+                    Environment scope = frame.environment.ancestor(depth);
+                    if (scope.isNumber(slot)) {
+                        pushNumber(scope.number(slot));
+                    } else {
+                        push(deref(scope.getAt(0, slot), frame));
+                    }
+                    break;
+                }
+
+                case OP_GET_LOCAL_RAW: {
+                    int depth = readByte(frame);
+                    int slot = readByte(frame);
+                    Environment scope = frame.environment.ancestor(depth);
+                    if (scope.isNumber(slot)) {
+                        pushNumber(scope.number(slot));
+                    } else {
+                        push(scope.getAt(0, slot));
+                    }
+                    break;
+                }
+
+                case OP_SET_LOCAL: {
+                    int depth = readByte(frame);
+                    int slot = readByte(frame);
+                    Environment scope = frame.environment.ancestor(depth);
+                    if (scope.isReference(slot)) {
+                        interpreter.assignReferenceIn((Reference)scope.getAt(0, slot),
+                                peek(0), frame.environment);
+                    } else if (stack[stackTop - 1] == Environment.UNBOXED) {
+                        scope.setNumber(slot, numbers[stackTop - 1]);
+                    } else {
+                        scope.assignAt(0, slot, peek(0));
+                    }
+                    break;
+                }
+
+                case OP_GET_GLOBAL: {
+                    Expr.Variable variable = (Expr.Variable)readConstant(frame);
+                    push(deref(interpreter.globalCell(variable).value, frame));
+                    break;
+                }
+
+                case OP_GET_GLOBAL_RAW: {
+                    Expr.Variable variable = (Expr.Variable)readConstant(frame);
+                    push(interpreter.globalCell(variable).value);
+                    break;
+                }
+
+                case OP_SET_GLOBAL: {
+                    Expr.Assign assign = (Expr.Assign)readConstant(frame);
+                    Environment.Cell cell = interpreter.globalCell(assign);
+                    if (cell.value instanceof Reference) {
+                        interpreter.assignReferenceIn((Reference)cell.value,
+                                peek(0), frame.environment);
+                    } else {
+                        cell.value = peek(0);
+                    }
+                    break;
+                }
+
+                case OP_DEFINE: {
+                    String name = (String)readConstant(frame);
+                    if (stack[stackTop - 1] == Environment.UNBOXED) {
+                        frame.environment.defineNumber(name, popNumber());
+                    } else {
+                        frame.environment.define(name, pop());
+                    }
+                    break;
+                }
+
+                case OP_GET_PROPERTY: {
+                    Expr.Get get = (Expr.Get)readConstant(frame);
+                    Token name = get.name;
+                    Object object = pop();
+
+                    if (object instanceof LoxInstance) {
+                        Object result = get.cache.get((LoxInstance)object, name);
+                        if (result instanceof LoxFunction &&
+                                ((LoxFunction)result).isGetter()) {
+                            push(result);
+                            if (callFunction((LoxFunction)result,
+                                    ((LoxFunction)result).receiver, 0, name)) {
+                                frame = frames[frameCount - 1];
+                                code = frame.chunk.code;
+                            }
+                            break;
+                        }
+
+                        push(result);
+                        break;
+                    }
+
+                    if (object instanceof NativeInstance) {
+                        push(((NativeInstance)object).get(name.lexeme));
+                        break;
+                    }
+
+                    throw new RuntimeError(name,
+                            "Only instances have properties.");
+                }
+
+                case OP_SET_PROPERTY: {
+                    Expr.Set set = (Expr.Set)readConstant(frame);
+                    Token name = set.name;
+                    Object value = pop();
+                    Object object = pop();
+
+                    if (!(object instanceof LoxInstance)) {
+                        throw new RuntimeError(name, "Only instances have fields.");
+                    }
+
+                    set.cache.set((LoxInstance)object, name, value);
+                    push(value);
+                    break;
+                }
+
+                case OP_GET_SUPER: {
+                    Expr.Super expr = (Expr.Super)readConstant(frame);
+                    int depth = readByte(frame);
+
+                    LoxClass superclass =
+                            (LoxClass)frame.environment.getAt(depth, 0);
+                    LoxInstance object =
+                            (LoxInstance)frame.environment.getAt(depth - 1, 0);
+
+                    push(expr.cache.get(superclass, expr.method).bind(object));
+                    break;
+                }
+
+                case OP_GET_INDEX: {
+                    Token name = frame.chunk.tokens[start];
+                    Object indexObject = pop();
+                    LoxArray array = interpreter.checkArray(name, pop());
+                    int index = interpreter.checkIndex(name, array, indexObject);
+                    push(array.get(index));
+                    break;
+                }
+
+                case OP_SET_INDEX: {
+                    Token name = frame.chunk.tokens[start];
+                    Object value = pop();
+                    Object indexObject = pop();
+                    LoxArray array = interpreter.checkArray(name, pop());
+                    int index = interpreter.checkIndex(name, array, indexObject);
+                    array.set(index, value);
+                    push(value);
+                    break;
+                }
+
+                case OP_EQUAL: {
+                    Object b = pop();
+                    Object a = pop();
+                    push(interpreter.isEqual(a, b));
+                    break;
+                }
+
+                case OP_NOT_EQUAL: {
+                    Object b = pop();
+                    Object a = pop();
+                    push(!interpreter.isEqual(a, b));
+                    break;
+                }
+
+                case OP_GREATER:
+                    if (isNumber(0) && isNumber(1)) {
+                        double b = popNumber();
+                        double a = popNumber();
+                        push(a > b);
+                    } else {
+                        binary(frame.chunk.tokens[start]);
+                    }
+                    break;
+
+                case OP_GREATER_EQUAL:
+                    if (isNumber(0) && isNumber(1)) {
+                        double b = popNumber();
+                        double a = popNumber();
+                        push(a >= b);
+                    } else {
+                        binary(frame.chunk.tokens[start]);
+                    }
+                    break;
+
+                case OP_LESS:
+                    if (isNumber(0) && isNumber(1)) {
+                        double b = popNumber();
+                        double a = popNumber();
+                        push(a < b);
+                    } else {
+                        binary(frame.chunk.tokens[start]);
+                    }
+                    break;
+
+                case OP_LESS_EQUAL:
+                    if (isNumber(0) && isNumber(1)) {
+                        double b = popNumber();
+                        double a = popNumber();
+                        push(a <= b);
+                    } else {
+                        binary(frame.chunk.tokens[start]);
+                    }
+                    break;
+
+                case OP_ADD:
+                    if (isNumber(0) && isNumber(1)) {
+                        double b = popNumber();
+                        double a = popNumber();
+                        pushNumber(a + b);
+                    } else {
+                        binary(frame.chunk.tokens[start]);
+                    }
+                    break;
+
+                case OP_SUBTRACT:
+                    if (isNumber(0) && isNumber(1)) {
+                        double b = popNumber();
+                        double a = popNumber();
+                        pushNumber(a - b);
+                    } else {
+                        binary(frame.chunk.tokens[start]);
+                    }
+                    break;
+
+                case OP_MULTIPLY:
+                    if (isNumber(0) && isNumber(1)) {
+                        double b = popNumber();
+                        double a = popNumber();
+                        pushNumber(a * b);
+                    } else {
+                        binary(frame.chunk.tokens[start]);
+                    }
+                    break;
+
+                // Dividing by zero is reported by the interpreter.
+                case OP_DIVIDE:
+                    if (isNumber(0) && isNumber(1) && numberAt(0) != 0) {
+                        double b = popNumber();
+                        double a = popNumber();
+                        pushNumber(a / b);
+                    } else {
+                        binary(frame.chunk.tokens[start]);
+                    }
+                    break;
+
+                case OP_MODULO:
+                    if (isNumber(0) && isNumber(1)) {
+                        double b = popNumber();
+                        double a = popNumber();
+                        pushNumber(a % b);
+                    } else {
+                        binary(frame.chunk.tokens[start]);
+                    }
+                    break;
+
+                case OP_NOT:
+                    push(!interpreter.isTruthy(pop()));
+                    break;
+
+                case OP_NEGATE:
+                    if (isNumber(0)) {
+                        pushNumber(-popNumber());
+                    } else {
+                        push(interpreter.unary(frame.chunk.tokens[start], pop()));
+                    }
+                    break;
+
+                case OP_CONDITIONAL: {
+                    Object right = pop();
+                    Object middle = pop();
+                    Object left = pop();
+                    push(interpreter.isTruthy(left) ? middle : right);
+                    break;
+                }
+
+                case OP_JUMP: {
+                    int offset = readShort(frame);
+                    frame.ip += offset;
+                    break;
+                }
+
+                case OP_JUMP_IF_FALSE: {
+                    int offset = readShort(frame);
+                    if (!isTruthy(0)) frame.ip += offset;
+                    break;
+                }
+
+                case OP_JUMP_IF_TRUE: {
+                    int offset = readShort(frame);
+                    if (isTruthy(0)) frame.ip += offset;
+                    break;
+                }
+
+                case OP_LOOP: {
+                    int offset = readShort(frame);
+                    frame.ip -= offset;
+                    break;
+                }
+
+                case OP_BEGIN_SCOPE:
+                    frame.environment = new Environment(frame.environment);
+                    break;
+
+                case OP_END_SCOPE:
+                    frame.environment = frame.environment.enclosing;
+                    break;
+
+                case OP_BEGIN_LOOP_SCOPE: {
+                    Environment scope = frame.loopScope;
+                    if (scope != null && scope.enclosing == frame.environment) {
+                        scope.reset();
+                        frame.loopScope = null;
+                    } else {
+                        scope = new Environment(frame.environment);
+                    }
+                    frame.environment = scope;
+                    break;
+                }
+
+                case OP_END_LOOP_SCOPE:
+                    frame.loopScope = frame.environment;
+                    frame.environment = frame.environment.enclosing;
+                    break;
+
+                case OP_CALL: {
+                    int argCount = readByte(frame);
+                    if (callValue(peek(argCount), argCount,
+                            frame.chunk.tokens[start])) {
+                        replaceReturningCaller();
+                        frame = frames[frameCount - 1];
+                        code = frame.chunk.code;
+                    }
+                    break;
+                }
+
+                case OP_INVOKE: {
+                    Expr.Get get = (Expr.Get)readConstant(frame);
+                    int argCount = readByte(frame);
+                    Token paren = frame.chunk.tokens[start];
+                    int receiverSlot = stackTop - argCount - 1;
+                    Object object = valueAt(receiverSlot);
+
+                    // Unlike the interpreter, the method is looked up
+                    // after its arguments have been evaluated, as in clox.
+                    if (object instanceof LoxInstance) {
+                        LoxInstance instance = (LoxInstance)object;
+                        LoxFunction method = get.cache.getMethod(instance, get.name);
+                        if (method != null && !method.isGetter()) {
+                            checkArity(method, argCount, paren);
+                            if (callFunction(method, instance, argCount, paren)) {
+                                replaceReturningCaller();
+                                frame = frames[frameCount - 1];
+                                code = frame.chunk.code;
+                            }
+                            break;
+                        }
+                    }
+
+                    Object callee = getProperty(get, object);
+                    stack[receiverSlot] = callee;
+                    if (callValue(callee, argCount, paren)) {
+                        replaceReturningCaller();
+                        frame = frames[frameCount - 1];
+                        code = frame.chunk.code;
+                    }
+                    break;
+                }
+
+                case OP_CLOSURE: {
+                    Expr.Function declaration = (Expr.Function)readConstant(frame);
+                    String name = (String)readConstant(frame);
+                    push(new LoxFunction(name, declaration,
+                            frame.environment, false));
+                    break;
+                }
+
+                case OP_CLASS: {
+                    Stmt.Class stmt = (Stmt.Class)readConstant(frame);
+
+                    Object superclass = null;
+                    if (stmt.superclass != null) {
+                        superclass = pop();
+                        if (!(superclass instanceof LoxClass)) {
+                            throw new RuntimeError(stmt.superclass.name,
+                                    "Superclass must be a class.");
+                        }
+                    }
+
+                    push(interpreter.createClass(stmt, (LoxClass)superclass,
+                            frame.environment));
+                    break;
+                }
+
+                case OP_ARRAY: {
+                    int count = readShort(frame);
+                    LoxArray array = new LoxArray();
+                    for (int i = stackTop - count; i < stackTop; ++i) {
+                        array.add(valueAt(i));
+                    }
+                    stackTop -= count;
+                    push(array);
+                    break;
+                }
+
+                case OP_IMPORT:
+                    interpreter.importModule(frame.chunk.tokens[start], pop());
+                    break;
+
+                case OP_RETURN: {
+                    // A number returned to another frame stays unboxed.
+                    boolean isNumber = frame.receiver == null &&
+                            stack[stackTop - 1] == Environment.UNBOXED;
+                    double number = isNumber ? numbers[stackTop - 1] : 0;
+
+                    Object result = isNumber ? null : pop();
+                    if (frame.receiver != null) result = frame.receiver;
+
+                    Arrays.fill(stack, frame.base, stackTop, null);
+                    stackTop = frame.base;
+                    frames[--frameCount] = null;
+
+                    if (frameCount == exitFrameCount) {
+                        if (isNumber) return number;
+                        return result;
+                    }
+
+                    if (isNumber) {
+                        pushNumber(number);
+                    } else {
+                        push(result);
+                    }
+                    frame = frames[frameCount - 1];
+                    code = frame.chunk.code;
+                    break;
+                }
+            }
+        }
+    }
+
+    // Returns true if a new frame was pushed, in which case the caller
+    // needs to pick up executing it.
+    private boolean callValue(Object callee, int argCount, Token paren) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren,
+                    "Only functions and classes are callable.");
+        }
+
+        LoxCallable function = (LoxCallable)callee;
+        checkArity(function, argCount, paren);
+
+        if (callee instanceof LoxFunction) {
+            return callFunction((LoxFunction)callee,
+                    ((LoxFunction)callee).receiver, argCount, paren);
+        }
+
+        if (callee instanceof LoxClass) {
+            LoxClass klass = (LoxClass)callee;
+            LoxFunction initializer = klass.findInitializer();
+            if (initializer == null) {
+                stackTop -= argCount + 1;
+                push(new LoxInstance(klass));
+                return false;
+            }
+
+            return callFunction(initializer, new LoxInstance(klass), argCount, paren);
+        }
+
+        List<Object> arguments = new ArrayList<>(argCount);
+        for (int i = stackTop - argCount; i < stackTop; ++i) {
+            arguments.add(valueAt(i));
+        }
+
+        Object result = function.call(interpreter, arguments);
+        Arrays.fill(stack, stackTop - argCount - 1, stackTop, null);
+        stackTop -= argCount + 1;
+        push(result);
+        return false;
+    }
+
+    private void checkArity(LoxCallable function, int argCount, Token paren) {
+        if (argCount != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
+                    function.arity() + " arguments but got " +
+                    argCount + ".");
+        }
+    }
+
+    // Reads a property the way OP_GET_PROPERTY does, but runs a getter
+    // to completion instead of leaving its frame for the caller.
+    private Object getProperty(Expr.Get get, Object object) {
+        if (object instanceof LoxInstance) {
+            Object result = get.cache.get((LoxInstance)object, get.name);
+            if (result instanceof LoxFunction &&
+                    ((LoxFunction)result).isGetter()) {
+                LoxFunction getter = (LoxFunction)result;
+                int exitFrameCount = frameCount;
+                push(getter);
+                if (callFunction(getter, getter.receiver, 0, get.name)) {
+                    try {
+                        return run(exitFrameCount);
+                    } catch (StackOverflowError error) {
+                        // A getter that ends up back here again runs
+                        // on the Java stack, which can run out first.
+                        throw new RuntimeError(get.name, "Stack overflow.");
+                    }
+                }
+                return pop();
+            }
+
+            return result;
+        }
+
+        if (object instanceof NativeInstance) {
+            return ((NativeInstance)object).get(get.name.lexeme);
+        }
+
+        throw new RuntimeError(get.name, "Only instances have properties.");
+    }
+
+    private boolean callFunction(LoxFunction function, LoxInstance receiver,
+                                 int argCount, Token token) {
+        Chunk chunk = function.declaration.chunk;
+
+        // Functions created outside the VM (for example, by a
+        // reference being followed) have never been compiled.
+        if (chunk == null) {
+            List<Object> arguments = new ArrayList<>(argCount);
+            for (int i = stackTop - argCount; i < stackTop; ++i) {
+                arguments.add(valueAt(i));
+            }
+
+            Object result = function.invoke(interpreter, receiver, arguments);
+            Arrays.fill(stack, stackTop - argCount - 1, stackTop, null);
+            stackTop -= argCount + 1;
+            push(result);
+            return false;
+        }
+
+        if (frameCount == FRAMES_MAX) {
+            throw new RuntimeError(token, "Stack overflow.");
+        }
+
+        boolean isMethod = function.declaration.isMethod;
+        Environment environment = new Environment(function.closure,
+                isMethod ? argCount + 1 : argCount);
+        if (isMethod) environment.define(null, receiver);
+
+        for (int i = stackTop - argCount; i < stackTop; ++i) {
+            if (stack[i] == Environment.UNBOXED) {
+                environment.defineNumber(null, numbers[i]);
+            } else {
+                environment.define(null, stack[i]);
+            }
+        }
+
+        pushFrame(chunk, environment, stackTop - argCount - 1,
+                function.isInitializer ? receiver : null);
+        return true;
+    }
+
+    // A frame that just made a call and will return whatever it
+    // returns, as "return f(...)" does, isn't needed any more, so the
+    // new frame takes its place. Tail calls then don't use up frames,
+    // as they don't use up the stack in the interpreter.
+    private void replaceReturningCaller() {
+        CallFrame caller = frames[frameCount - 2];
+        if (caller.receiver != null || caller.chunk.code[caller.ip] != OP_RETURN) {
+            return;
+        }
+
+        CallFrame callee = frames[frameCount - 1];
+        int count = stackTop - callee.base;
+        System.arraycopy(stack, callee.base, stack, caller.base, count);
+        System.arraycopy(numbers, callee.base, numbers, caller.base, count);
+        Arrays.fill(stack, caller.base + count, stackTop, null);
+        stackTop = caller.base + count;
+
+        callee.base = caller.base;
+        frames[frameCount - 2] = callee;
+        frames[--frameCount] = null;
+    }
+
+    private void pushFrame(Chunk chunk, Environment environment, int base,
+                           Object receiver) {
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+
+        CallFrame frame = new CallFrame();
+        frame.chunk = chunk;
+        frame.ip = 0;
+        frame.environment = environment;
+        frame.base = base;
+        frame.receiver = receiver;
+        frames[frameCount++] = frame;
+    }
+
+    private Object deref(Object value, CallFrame frame) {
+        if (value instanceof Reference) {
+            return interpreter.evaluateIn(((Reference)value).drf(),
+                    frame.environment);
+        }
+        return value;
+    }
+
+    private int readByte(CallFrame frame) {
+        return frame.chunk.code[frame.ip++] & 0xff;
+    }
+
+    private int readShort(CallFrame frame) {
+        byte[] code = frame.chunk.code;
+        frame.ip += 2;
+        return ((code[frame.ip - 2] & 0xff) << 8) | (code[frame.ip - 1] & 0xff);
+    }
+
+    private Object readConstant(CallFrame frame) {
+        return frame.chunk.constants.get(readShort(frame));
+    }
+
+    private void binary(Token operator) {
+        Object b = pop();
+        Object a = pop();
+        push(interpreter.binary(operator, a, b));
+    }
+
+    private void push(Object value) {
+        if (stackTop == stack.length) {
+            stack = Arrays.copyOf(stack, stackTop * 2);
+            numbers = Arrays.copyOf(numbers, stackTop * 2);
+        }
+        stack[stackTop++] = value;
+    }
+
+    private void pushNumber(double value) {
+        push(Environment.UNBOXED);
+        numbers[stackTop - 1] = value;
+    }
+
+    // Boxes an unboxed number, since the value is escaping.
+    private Object pop() {
+        Object value = valueAt(--stackTop);
+        stack[stackTop] = null;
+        return value;
+    }
+
+    private double popNumber() {
+        double value = numberAt(0);
+        stack[--stackTop] = null;
+        return value;
+    }
+
+    private Object peek(int distance) {
+        return valueAt(stackTop - 1 - distance);
+    }
+
+    private Object valueAt(int index) {
+        Object value = stack[index];
+        if (value == Environment.UNBOXED) return numbers[index];
+        return value;
+    }
+
+    private boolean isNumber(int distance) {
+        Object value = stack[stackTop - 1 - distance];
+        return value == Environment.UNBOXED || value instanceof Double;
+    }
+
+    private double numberAt(int distance) {
+        int index = stackTop - 1 - distance;
+        if (stack[index] == Environment.UNBOXED) return numbers[index];
+        return (double)stack[index];
+    }
+
+    private boolean isTruthy(int distance) {
+        Object value = stack[stackTop - 1 - distance];
+        return value == Environment.UNBOXED || interpreter.isTruthy(value);
+    }
+}
@@ -16,34 +16,35 @@ public class GenerateAst {
         defineAst(outputDir, "Expr", Arrays.asList(
                 "Allot      : Expr object, Token name, Expr value",
                 "Array      : List<Expr> values",
-                "Assign     : Token name, Expr value",
+                "Assign     : Token name, Expr value : int depth = -1, int slot, Environment.Cell cell",
                 "Ternary    : Expr left, Token leftOper, Expr middle, Token rightOper, Expr right",
-                "Binary     : Expr left, Token operator, Expr right",
+                "Binary     : Expr left, Token operator, Expr right : BinaryNode node = BinaryNode.UNINITIALIZED",
                 "Call       : Expr callee, Token paren, List<Expr> arguments",
-                "Function   : List<Token> params, List<Stmt> body",
-                "Get        : Expr object, Token name",
+                "Function   : List<Token> params, List<Stmt> body : boolean isMethod, Chunk chunk, int calls, Jit.Unit jit",
+                "Get        : Expr object, Token name : InlineCache.Get cache = new InlineCache.Get()",
                 "Grouping   : Expr expression",
                 "Literal    : Object value",
                 "Logical    : Expr left, Token operator, Expr right",
                 "Reference  : Token operator, Expr value",
-                "Set        : Expr object, Token name, Expr value",
+                "Set        : Expr object, Token name, Expr value : InlineCache.Set cache = new InlineCache.Set()",
                 "Subscript  : Expr object, Token name, Expr index",
-                "Super      : Token keyword, Token method",
-                "This       : Token keyword",
-                "Unary      : Token operator, Expr right",
-                "Variable   : Token name"
+                "Super      : Token keyword, Token method : int depth = -1, InlineCache.Super cache = new InlineCache.Super()",
+                "This       : Token keyword : int depth = -1, int slot",
+                "Unary      : Token operator, Expr right : UnaryNode node = UnaryNode.UNINITIALIZED",
+                "Variable   : Token name : int depth = -1, int slot, Stmt.Var declaration, Environment.Cell cell"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
+                "Block      : List<Stmt> statements : boolean captured",
                 "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> classMethods",
                 "Expression : Expr expression",
+                "For        : Stmt initializer, Expr condition, Expr increment, Stmt body : int backEdges, Jit.Unit jit",
                 "Function   : Token name, Expr.Function function",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Import     : Token keyword, Expr module",
                 "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt body"
+                "Var        : Token name, Expr initializer : boolean assigned",
+                "While      : Expr condition, Stmt body : int backEdges, Jit.Unit jit"
         ));
     }
 
@@ -62,9 +63,11 @@ public class GenerateAst {
         defineVisitor(writer, baseName, types);
 
         for (String type: types) {
-            String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] parts = type.split(":");
+            String className = parts[0].trim();
+            String fields = parts[1].trim();
+            String metadata = parts.length > 2 ? parts[2].trim() : null;
+            defineType(writer, baseName, className, fields, metadata);
         }
 
         writer.println();
@@ -89,7 +92,7 @@ public class GenerateAst {
 
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String metadataList) {
         writer.println("    static class " + className + " extends " +
                 baseName + " {");
 
@@ -115,6 +118,14 @@ public class GenerateAst {
             writer.println("        final " + field + ";");
         }
 
+        // Metadata isn't part of the syntax tree. It's filled in by
+        // later passes (like the resolver), so it's mutable.
+        if (metadataList != null) {
+            for (String field : metadataList.split(", ")) {
+                writer.println("        " + field + ";");
+            }
+        }
+
         writer.println("    }");
     }
 